@@ -0,0 +1,17 @@
+@echo off
+rem AdHocAgent launcher. Passes the class data sharing archive to the JVM, if the archive was made by
+rem    AdHocAgent --train \path\to\protocol_descriptor.java
+rem The JVM checks the archive itself, the archive of other JVM or other AdHocAgent.jar is ignored with a warning and the launch goes as usual.
+setlocal
+set "JSA=%USERPROFILE%\.AdHocAgent\AdHocAgent.jsa"
+set "JAVA=java"
+if defined JAVA_HOME set "JAVA=%JAVA_HOME%\bin\java"
+
+if "%~1"=="--train" goto plain
+if not exist "%JSA%" goto plain
+"%JAVA%" -XX:+IgnoreUnrecognizedVMOptions -XX:SharedArchiveFile="%JSA%" -Xshare:auto -jar "%~dp0AdHocAgent.jar" %*
+exit /b %ERRORLEVEL%
+
+:plain
+"%JAVA%" -jar "%~dp0AdHocAgent.jar" %*
+exit /b %ERRORLEVEL%
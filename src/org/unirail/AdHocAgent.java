@@ -29,28 +29,100 @@ package org.unirail;
 
 
 import java.io.*;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.net.HttpURLConnection;
+import java.net.HttpRetryException;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+//The agent of one description, it keeps the cycle state. The --batch mode runs many agents in one JVM, they share the javac session of the Compiler and the Session connections
 public class AdHocAgent {
 	
-	private static Path tmp;
+	Merged description;//the content to upload
+	
+	//The description, the imported sources from their project declarations and the constants info.
+	//The description stays in its file and is streamed into the upload with a fixed buffer, it is checked to be the validated version on every write.
+	//The imported parts are small, they are kept as they were read at the merge
+	static final class Merged {
+		private final List<Object> parts  = new ArrayList<>();//byte[] or Part of a file
+		long                       length = 0;//in bytes
+		
+		private static final class Part {
+			final Path path;
+			final long size;
+			final long modified;
+			
+			Part( Path path, long size, long modified ) {
+				this.path     = path;
+				this.size     = size;
+				this.modified = modified;
+			}
+			
+			void check() throws IOException {
+				if (Files.size( path ) != size || Files.getLastModifiedTime( path ).toMillis() != modified)
+					throw new IOException( path + " is changed after the validation, the upload is stopped. Run the agent again" );
+			}
+		}
+		
+		//the whole file of the size and the modification time, as it was validated
+		Merged file( Path path, long size, long modified ) throws IOException {
+			final Part part = new Part( path, size, modified );
+			part.check();
+			parts.add( part );
+			length += size;
+			return this;
+		}
+		
+		Merged bytes( byte[] bytes ) {
+			parts.add( bytes );
+			length += bytes.length;
+			return this;
+		}
+		
+		void writeTo( OutputStream dst ) throws IOException {
+			final byte[] buffer = new byte[64 * 1024];
+			for (Object part : parts)
+				if (part instanceof byte[]) dst.write( (byte[]) part );
+				else
+				{
+					final Part file = (Part) part;
+					file.check();
+					try (InputStream src = Files.newInputStream( file.path ))
+					{
+						for (long rest = file.size, n; 0 < rest; rest -= n)
+						{
+							if ((n = src.read( buffer, 0, (int) Math.min( rest, buffer.length ) )) < 1) throw new IOException( file.path + " is changed after the validation, the upload is stopped. Run the agent again" );
+							dst.write( buffer, 0, (int) n );
+						}
+					}
+					file.check();//not edited while it was read
+				}
+		}
+		
+		//the whole content, for the delta upload
+		byte[] bytes() throws IOException {
+			final ByteArrayOutputStream dst = new ByteArrayOutputStream( (int) length );
+			writeTo( dst );
+			return dst.toByteArray();
+		}
+	}
 	
 	private boolean is_wrong = false;
 	
@@ -60,7 +132,27 @@ public class AdHocAgent {
 	}
 	
 	
-	private AdHocAgent() {
+	//generated files go into dest_dir_path. batch - the description of the --batch mode, the cycle without the console interaction
+	AdHocAgent( Path dest_dir_path, boolean batch ) {
+		this.dest_dir_path = dest_dir_path;
+		this.batch         = batch;
+		InC                = dest_dir_path.resolve( "InC" );
+		InCPP              = dest_dir_path.resolve( "InCPP" );
+		InCS               = dest_dir_path.resolve( "InCS" );
+		InKT               = dest_dir_path.resolve( "InKT" );
+		InRS               = dest_dir_path.resolve( "InRS" );
+		InTS               = dest_dir_path.resolve( "InTS" );
+		generated_folders  = new Path[]{InC, InCPP, InCS, InKT, InRS, InTS};
+	}
+	
+	//compiles, validates and merges the description into the description field, null - the description is wrong
+	void process() {
+		is_wrong = false;
+		const_info.setLength( 0 );
+		
+		final Compiler comp = new Compiler();
+		comp.validate = true;
+		
 		String classpath = "";
 		{
 			for (String path : props.getProperty( "classpath" ).split( "," ))
@@ -69,6 +161,14 @@ public class AdHocAgent {
 					File file = new File( path.trim() );
 					if (!file.exists()) exit( "Check the < classpath > option of the provided AdHocAgent.properties file." + path + "  (" + file.getCanonicalPath() + ")  is not exists.", -99 );
 					classpath += File.pathSeparator + file.getCanonicalPath();
+					
+					final Path meta = file.toPath().resolve( "org" ).resolve( "unirail" ).resolve( "AdHoc" );
+					if (Files.isDirectory( meta ))//AdHoc annotations sources. compile them once per session and serve as classes
+						try (DirectoryStream<Path> srcs = Files.newDirectoryStream( meta, "*.java" ))
+						{
+							for (Path src : srcs)
+								comp.addPersistentSource( "org.unirail.AdHoc." + dropRight( src.getFileName(), 5 ), new String( Files.readAllBytes( src ), StandardCharsets.UTF_8 ) );
+						}
 				} catch (IOException e)
 				{
 					e.printStackTrace();
@@ -81,201 +181,319 @@ public class AdHocAgent {
 		
 		try
 		{
-			tmp = Files.createTempDirectory( "ClientAgent" );
-			Compiler comp = new Compiler();
+			final String cache = props.getProperty( "compile_cache" );//empty value switch the cache off
+			comp.cache_dir = cache == null ? Paths.get( System.getProperty( "user.home" ), ".AdHocAgent", "cache" ) :
+			                 cache.trim().isEmpty() ? null : Paths.get( cache.trim() );
 			
+			final long description_size     = Files.size( provided_file_path );//the validated version of the description, see Merged
+			final long description_modified = Files.getLastModifiedTime( provided_file_path ).toMillis();
 			comp.addSource( provided_file_path );
 			
+			final Phases.Phase compile = phases.begin( "compile" );
 			try
 			{
-				comp.compile( false, "-classpath", classpath, "-encoding", "UTF-8" );
+				comp.compile( false, "-classpath", classpath, "-encoding", "UTF-8", "-proc:none" );
 			} catch (Exception e)
 			{
 				System.out.println( "Please check that:" +
 				                    "\n\t provided protocol description files are in UTF-8 encoding" +
 				                    "\n\t path to imported files are register with classpath value of AdHocAgent.properties" );
 				throw e;
-			}
+			} finally { compile.close(); }
 			
 			Set<String> unique_names = new HashSet<>();
 			
+			final Phases.Phase validate = phases.begin( "validate" );
+			Phases.Phase       merge    = null;
 			try
 			{
-				
 				final String description_file_name = provided_file_path.getFileName().toString();
 				final String name                  = "." + description_file_name.substring( 0, description_file_name.length() - 5 );//trim .java
 				
-				final Set<String> classes      = comp.binaries.keySet();
-				final String      root_project = classes.stream().filter( c -> c.endsWith( name ) ).min( Comparator.comparingInt( String::length ) ).get();
+				final Map<String, ClassFile> ast          = comp.classes;//the typed AST data, if javac was run and can, otherwise the class bytes
+				final Set<String>            classes      = ast == null ? comp.binaries.keySet() : ast.keySet();
+				final String                 root_project = classes.stream().filter( c -> c.endsWith( name ) ).min( Comparator.comparingInt( String::length ) ).get();
 				
-				boolean channel_detected = false;
-				for (String full_name : classes)
-					if (!full_name.startsWith( "org.unirail.AdHoc" ))
+				final List<String> names = classes.stream().filter( full_name -> !full_name.startsWith( "org.unirail.AdHoc" ) ).sorted().collect( Collectors.toList() );
+				
+				final Map<String, ClassFile> class_files = names.parallelStream().collect( Collectors.toConcurrentMap( full_name -> full_name, full_name -> {
+					if (ast != null) return ast.get( full_name );
+					try
 					{
-						for (String str : full_name.replace( "$", "." ).split( "\\." )) if (is_prohibited( str )) wrong( "Package < " + full_name + " > part name < " + str + " >  is prohibited" );
-						
-						final Class<?> CLASS = comp.loadClass( full_name );
-						
-						if (CLASS.isInterface()) continue;//just skip
-						
-						
-						if (!CLASS.isEnum() && CLASS.getInterfaces().length == 0)//Pack declaration
-							if (full_name.startsWith( root_project ) && full_name.contains( "$" ))//pack in root project
-							{
-								
-								if (!unique_names.add( CLASS.getSimpleName() ))
-									wrong( "Pack declaration class < " + full_name + " > name < " + CLASS.getSimpleName() + " > is not unique" );//checking unique_names
-							}
-							else//pack in imported Lib
-							{
-								Annotation[] anns = CLASS.getAnnotations();//imported pack class check ID presently
-								if (anns.length == 0 || !anns[0].annotationType().getName().equals( "org.unirail.AdHoc.id" ))
-									wrong( "Library (imported project) Packs < " + full_name + " > have to have predefined unique id annotation." );
-							}
-						
-						//check channel
-						if (full_name.startsWith( root_project ))//in root project class
-						{
-							final String su = CLASS.getSuperclass().getSimpleName();
-							if ((su.equals( "StdProtocol" ) || su.equals( "AdvProtocol" )))
-							{
-								channel_detected = true;
-								if (CLASS.getInterfaces().length != 2) wrong( "Interface < " + full_name + " > have to have joint two interfaces." );
-							}
-						}
-						
-						checkFields( full_name, CLASS, CLASS.getFields() );
-						checkFields( full_name, CLASS, CLASS.getDeclaredFields() );
-						
-					}
+						final Compiler.BinaryCode bin = comp.binaries.get( full_name );
+						return new ClassFile( bin.getByteCode(), bin.length() );
+					} catch (IOException e) { throw new UncheckedIOException( e ); }
+				} ) );
+				
+				final int targets = targets( class_files.values() );
+				
+				final List<Check> checks = names.parallelStream()//every class is checked in parallel, findings are merged in the class name order
+						.map( full_name -> check( comp, class_files.get( full_name ), class_files, root_project, full_name, targets ) )
+						.collect( Collectors.toList() );
+				
+				boolean channel_detected = false;
+				for (Check check : checks)
+				{
+					check.wrongs.forEach( this::wrong );
+					
+					if (check.pack_name != null && !unique_names.add( check.pack_name ))
+						wrong( "Pack declaration class < " + check.full_name + " > name < " + check.pack_name + " > is not unique" + check.at );//checking unique_names
+					
+					channel_detected |= check.channel;
+					for (ClassFile.Field fld : check.constants) constant( const_info, check.full_name, fld );
+				}
+				
 				if (!channel_detected) exit( "No communication channels were found.", 1 );
 				if (is_wrong) exit( "Something wrong detected. Please fix problems and try again.", 1 );
 				
-				//combine parts if they exists in one file
-				
-				String description_src = new String( Files.readAllBytes( provided_file_path ), StandardCharsets.UTF_8 );//load description file content
+				validate.close();
+				merge = phases.begin( "merge" );
 				
+				//combine parts if they exists in one file
 				
-				boolean process_imports = false;
+				final String description_src = new String( Files.readAllBytes( provided_file_path ), StandardCharsets.UTF_8 );//load description file content
+				final Merged merged          = new Merged().file( provided_file_path, description_size, description_modified );
 				
-				for (final Matcher imports = imports_pattern.matcher( description_src );
-				     imports.find() && !(process_imports = !imports.group( 1 ).replaceAll( "[\\p{javaWhitespace}\\p{javaIdentifierIgnorable}]", "" ).startsWith( "org.unirail.AdHoc." )); ) {}
+				final boolean process_imports = new Lexer( description_src ).imports.stream().anyMatch( imported -> !imported.startsWith( "org.unirail.AdHoc." ) );
 				
 				if (process_imports)//descriptor file has some external dependencies. let gather all in one file before upload
 				{
-					final String meta_path = "org" + File.separator + "unirail" + File.separator + "AdHoc" + File.separator;
+					final Path meta = Paths.get( "org", "unirail", "AdHoc" );
 					
-					List<Path> java_srcs = //list of used in compilation source files
-							Arrays.stream( classpath.split( File.pathSeparator ) )
-									.flatMap( dir_str -> {
-												try
-												{
-													final int len = dir_str.length() + 1;
-													return Files.walk( Paths.get( dir_str ) ).filter( path -> {
-														String s = path.toString();
-														return Files.isRegularFile( path )
-														       && s.endsWith( ".java" )
-														       && !s.equals( description_file_name ) //skip descriptor file itself
-														       && !(s = s.substring( len )).startsWith( meta_path )//skip meta annotations
-														       && classes.contains( s.substring( 0, s.length() - 5 ).replace( File.separator, "." ) );//only compilated files
-													} );
-												} catch (IOException e) { e.printStackTrace(); }
-												
-												return null;
-											}
-									).collect( Collectors.toList() );
+					final List<Path> java_srcs = comp.used_sources.stream()//sources javac has read compiling the description, in the reading order
+							.filter( path -> !path.getParent().endsWith( meta ) //skip meta annotations
+							                 && !path.equals( provided_file_path.toAbsolutePath().normalize() ) )//skip descriptor file itself
+							.collect( Collectors.toList() );
 					
 					for (Path path : java_srcs)
 					{
-						String src           = new String( Files.readAllBytes( path ), StandardCharsets.UTF_8 ).trim();
-						int    decl_position = project_declaration( src );//project declaration place
+						final String src           = new String( Files.readAllBytes( path ), StandardCharsets.UTF_8 );
+						final int    decl_position = new Lexer( src ).declaration;//project declaration place
+						if (decl_position == -1) throw new IOException( "The project declaration is not found in " + path );
 						
+						int end = src.length();
+						while (decl_position < end && src.charAt( end - 1 ) <= ' ') end--;//trailing whitespace
 						
-						description_src += src.substring( decl_position ) + "\n";
+						merged.bytes( (src.substring( decl_position, end ) + "\n").getBytes( StandardCharsets.UTF_8 ) );
 					}
 				}
 				
-				if (const_info != "") description_src += "//@#$%^&*\n" + const_info;
-				
-				File file = tmp.resolve( project ).toFile();//temp name, before know real file length
-				
-				OutputStreamWriter os = new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 );
-				os.write( description_src );
-				os.flush();
-				os.close();
-				
-				Path out = tmp.resolve( file.length() + "@" + project + (is_testing ? "@" : "") );
-				
-				file.renameTo( out.toFile() );
-				
-				new ProcessBuilder( "jar", "cfM", "jar", out.getFileName().toString() ).directory( tmp.toFile() ).start().waitFor(); //produce JAR
-				
+				if (0 < const_info.length()) merged.bytes( ("//@#$%^&*\n" + const_info).getBytes( StandardCharsets.UTF_8 ) );
 				
+				description = merged;
+				merge.bytes = merged.length;
+			
 			} catch (IOException e)
 			{
 				e.printStackTrace();
+			} finally
+			{
+				validate.close();//a no-op if closed already, exit() has reported it as open before it throws
+				if (merge != null) merge.close();
 			}
-		} catch (Throwable t)
+		} catch (Exit e) { throw e; } catch (Throwable t)
 		{
 			t.printStackTrace();
 		}
 	}
 	
-	private String const_info = "";
+	private final StringBuilder const_info = new StringBuilder();
 	
-	private void checkFields( String full_name, Class CLASS, Field[] flds ) {
-		if (flds.length == 0) return;
+	//findings of one class validation
+	private static final class Check {
+		final String                full_name;
+		final String                at;//the class source position, if known
+		final List<String>          wrongs    = new ArrayList<>();
+		final List<ClassFile.Field> constants = new ArrayList<>();
+		String  pack_name = null;//root project pack simple name, should be unique
+		boolean channel   = false;
 		
-		if (CLASS.isEnum()) flds = Arrays.copyOf( flds, flds.length - 1 );//skip enum $VALUES synthetic field
+		Check( String full_name, String at ) {
+			this.full_name = full_name;
+			this.at        = at;
+		}
 		
-		Object instance = null;
-		for (Field fld : flds)
-			try
+		void wrong( String what ) { wrongs.add( what ); }
+	}
+	
+	//target languages of the description hosts and the deployment section. If nothing is found, all languages
+	private int targets( Collection<ClassFile> class_files ) {
+		int targets = 0;
+		for (ClassFile cf : class_files)
+			for (String host : cf.interfaces)
+				if (host.startsWith( "org/unirail/AdHoc/" )) targets |= Keywords.language( host.substring( "org/unirail/AdHoc/".length() ) );
+		
+		for (String key : props.stringPropertyNames())
+			if (key.indexOf( '/' ) != -1) targets |= Keywords.language( key.substring( 0, key.indexOf( '/' ) ) );
+		
+		return targets == 0 ? Keywords.ALL : targets;
+	}
+	
+	private static String prohibited( String name, int targets ) {
+		final int langs = Keywords.prohibited( name, targets );
+		return langs == 0 ? null : name + " > is prohibited (" + Keywords.languages( langs ) + ")";
+	}
+	
+	//the class is described by its bytes or by its source, see Validator. The class is loaded only to get a static final value, that is not known otherwise
+	private static Check check( Compiler comp, ClassFile cf, Map<String, ClassFile> class_files, String root_project, String full_name, int targets ) {
+		final Check check = new Check( full_name, cf.at );
+		
+		for (String str : full_name.replace( "$", "." ).split( "\\." ))
+		{
+			final String prohibited = prohibited( str, targets );
+			if (prohibited != null) check.wrong( "Package < " + full_name + " > part name < " + prohibited + cf.at );
+		}
+		
+		if (cf.is( ClassFile.ACC_INTERFACE )) return check;//just skip
+		
+		
+		if (!cf.is( ClassFile.ACC_ENUM ) && cf.interfaces.length == 0)//Pack declaration
+			if (full_name.startsWith( root_project ) && full_name.contains( "$" ))//pack in root project
+				check.pack_name = cf.simple_name;
+			else//pack in imported Lib
 			{
-				final Class<?> T = fld.getType();
-				
-				if (is_prohibited( fld.getName() )) wrong( "Сlass < " + full_name + " > field < " + fld.getName() + " > name is prohibited" );
-				
-				if (T.isMemberClass()) continue;
-				
-				if ((fld.getModifiers() & Modifier.STATIC) != 0 && (fld.getModifiers() & Modifier.FINAL) != 0)
-				{
-					if (T == String.class)
-					{
-						fld.setAccessible( true );
-						const_info += "//" + fld.getName() + "\t" + (fld.get( null ) == null ? "null" : "\"" + fld.get( null ) + "\"") + "\t" + full_name.replace( "$", "." ) + "\n";
-					}
-					else if (T.isPrimitive())
+				if (!"org/unirail/AdHoc/id".equals( cf.annotation ))//imported pack class check ID presently
+					check.wrong( "Library (imported project) Packs < " + full_name + " > have to have predefined unique id annotation." + cf.at );
+			}
+		
+		//check channel
+		if (full_name.startsWith( root_project ) && cf.super_name != null)//in root project class
+		{
+			final String su = ClassFile.simple_name( cf.super_name );
+			if ((su.equals( "StdProtocol" ) || su.equals( "AdvProtocol" )))
+			{
+				check.channel = true;
+				if (cf.interfaces.length != 2) check.wrong( "Interface < " + full_name + " > have to have joint two interfaces." + cf.at );
+			}
+		}
+		
+		checkFields( check, comp, cf, class_files, targets );
+		
+		return check;
+	}
+	
+	//fields names, modifiers and constants are taken from the class bytes or source, reflection is the fallback for not constant expressions only.
+	//The inherited public fields are checked with the class ones, as Class.getFields() lists them: the first found by the name hides the others
+	private static void checkFields( Check check, Compiler comp, ClassFile cf, Map<String, ClassFile> class_files, int targets ) {
+		final Set<String> names = new HashSet<>();
+		for (ClassFile.Field fld : cf.fields)
+			if (names.add( fld.name )) checkField( check, comp, check.full_name, cf.member_classes, fld, targets );
+		
+		inheritedFields( check, comp, cf, class_files, names, targets );
+	}
+	
+	//public fields of the super interfaces, then of the super class, from their class bytes or source if they are in the description, otherwise by reflection
+	private static void inheritedFields( Check check, Compiler comp, ClassFile cf, Map<String, ClassFile> class_files, Set<String> names, int targets ) {
+		final List<String> supers = new ArrayList<>( Arrays.asList( cf.interfaces ) );
+		if (cf.super_name != null) supers.add( cf.super_name );
+		
+		for (String super_name : supers)
+		{
+			final String    owner = super_name.replace( '/', '.' );
+			final ClassFile su    = class_files.get( owner );
+			if (su != null)
+			{
+				for (ClassFile.Field fld : su.fields)
+					if (fld.is( ClassFile.ACC_PUBLIC ) && !fld.is( ClassFile.ACC_SYNTHETIC ) && names.add( fld.name ))
 					{
-						fld.setAccessible( true );
-						const_info += "//" + fld.getName() + "\t" + fld.get( null ) + "\t" + full_name.replace( "$", "." ) + "\n";
+						final ClassFile.Field inherited = new ClassFile.Field( fld.access, fld.name, fld.descriptor );//the super class Field is checked concurrently
+						if (fld.known) inherited.value( fld.value );
+						inherited.at = fld.at;
+						checkField( check, comp, owner, su.member_classes, inherited, targets );
 					}
-					else if (T.isArray())
+				
+				inheritedFields( check, comp, su, class_files, names, targets );
+			}
+			else if (!super_name.equals( "java/lang/Object" ))
+				try
+				{
+					for (Field field : comp.loadClass( owner ).getFields())
 					{
-						fld.setAccessible( true );
-						if (instance == null) instance = CLASS.newInstance();
-						Object array = fld.get( instance );
-						String str   = "";
-						if (Array.get( array, 0 ).getClass() == String.class)
-							for (int i = 0, len = Array.getLength( array ); i < len; i++)
-							     str += ", " + (Array.get( array, i ) == null ? "null" : "\"" + Array.get( array, i ) + "\"");
-						else
-							for (int i = 0, len = Array.getLength( array ); i < len; i++)
-							     str += ", " + Array.get( array, i );
+						if (field.isSynthetic() || field.getType().isMemberClass() || !names.add( field.getName() )) continue;
 						
-						const_info += "//" + fld.getName() + "\t{" + str.substring( 1 ) + "}\t" + full_name.replace( "$", "." ) + "\n";
+						final ClassFile.Field inherited = new ClassFile.Field( field.getModifiers(), field.getName(), Array.newInstance( field.getType(), 0 ).getClass().getName().substring( 1 ).replace( '.', '/' ) );
+						if (inherited.is( ClassFile.ACC_STATIC | ClassFile.ACC_FINAL ))
+						{
+							field.setAccessible( true );
+							inherited.value( field.get( null ) );
+						}
+						checkField( check, comp, field.getDeclaringClass().getName(), Collections.emptySet(), inherited, targets );
 					}
+				} catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+		}
+	}
+	
+	//owner - the class that declares the field
+	private static void checkField( Check check, Compiler comp, String owner, Set<String> member_classes, ClassFile.Field fld, int targets ) {
+		final String full_name = check.full_name;
+		
+		try
+		{
+			if (fld.is( ClassFile.ACC_SYNTHETIC )) return;//skip enum $VALUES and similar
+			
+			final String prohibited = prohibited( fld.name, targets );
+			if (prohibited != null) check.wrong( "Сlass < " + full_name + " > field < " + prohibited + fld.at );
+			
+			final String T = fld.descriptor;
+			
+			if (T.charAt( 0 ) == 'L' && member_classes.contains( T.substring( 1, T.length() - 1 ) )) return;
+			
+			if (fld.is( ClassFile.ACC_STATIC | ClassFile.ACC_FINAL ))
+			{
+				if (!(T.equals( "Ljava/lang/String;" ) || T.length() == 1 || T.charAt( 0 ) == '[')) return;//String, primitive or array
+				
+				if (!fld.known)//not constant expression
+				{
+					final Field field = comp.loadClass( owner ).getDeclaredField( fld.name );
+					field.setAccessible( true );
+					fld.value( field.get( null ) );
 				}
-				else if ((fld.getModifiers() & Modifier.STATIC) != 0) wrong( "Pack < " + full_name + " >  static field < " + fld.getName() + " > should be declared as final" );
-				else if ((fld.getModifiers() & Modifier.FINAL) != 0) wrong( "Pack < " + full_name + " >  final field < " + fld.getName() + " > should be declared as static" );
 				
-			} catch (Exception e)
+				if (fld.value != null && fld.value.getClass().isArray() && (Array.getLength( fld.value ) == 0 || Array.get( fld.value, 0 ) == null)) return;
+				
+				check.constants.add( fld );
+			}
+			else if (fld.is( ClassFile.ACC_STATIC )) check.wrong( "Pack < " + full_name + " >  static field < " + fld.name + " > should be declared as final" + fld.at );
+			else if (fld.is( ClassFile.ACC_FINAL )) check.wrong( "Pack < " + full_name + " >  final field < " + fld.name + " > should be declared as static" + fld.at );
+			
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	//  //name	value	class
+	private static void constant( StringBuilder dst, String full_name, ClassFile.Field fld ) {
+		dst.append( "//" ).append( fld.name ).append( '\t' );
+		
+		final Object value = fld.value;
+		if (value == null) dst.append( "null" );
+		else if (value instanceof String) dst.append( '"' ).append( value ).append( '"' );
+		else if (value.getClass().isArray())
+		{
+			final boolean strings = Array.get( value, 0 ) instanceof String;
+			dst.append( '{' );
+			for (int i = 0, len = Array.getLength( value ); i < len; i++)
 			{
-				e.printStackTrace();
+				final Object item = Array.get( value, i );
+				dst.append( i == 0 ? " " : ", " );
+				if (strings && item != null) dst.append( '"' ).append( item ).append( '"' );
+				else dst.append( item );
 			}
+			dst.append( '}' );
+		}
+		else dst.append( value );
+		
+		dst.append( '\t' );
+		for (int i = 0; i < full_name.length(); i++) dst.append( full_name.charAt( i ) == '$' ? '.' : full_name.charAt( i ) );
+		dst.append( '\n' );
 	}
 	
-	private static BytesSrc bytes_src = null;
+	private BytesSrc bytes_src    = null;
+	private BytesSrc query_result = null;//the result query of the cycle, the request the server replies with the result
 	
 	interface BytesSrc {
 		void push_bytes_into( OutputStream dst ) throws Exception;
@@ -286,201 +504,760 @@ public class AdHocAgent {
 		return str.substring( 0, str.length() - len );
 	}
 	
-	private static boolean load_props( Path props_path ) throws Exception {
-		LOG.info( "Trying to load " + props_path );//in the current working dir
-		if (Files.exists( props_path ))
+	private boolean load_props( Path props_path ) throws Exception {
+		LOG.info( "Trying to load " + props_path );//in the current working dir
+		if (Files.exists( props_path ))
+		{
+			LOG.info( "Loading " + props_path );
+			props.load( Files.newBufferedReader( props_path ) );
+			return true;
+		}
+		return false;
+	}
+	
+	//the AdHocAgent.properties search, see README, and the description path
+	private void find_props( String[] args ) throws Exception {
+search_props:
+		{
+			if (0 < args.length)
+			{
+				set_provided_file_path( args[0] );
+				String name = dropRight( provided_file_path.getFileName(), 4 );
+				if (load_props( provided_file_path.getParent().resolve( name + "properties" ) )
+				    || load_props( provided_file_path.getParent().resolve( "AdHocAgent.properties" ) )
+				    || load_props( working_dir.resolve( name + "properties" ) )) break search_props;
+			}
+			
+			if (load_props( working_dir.resolve( "AdHocAgent.properties" ) )) break search_props;
+			
+			String classFileName;//the program binary path
+			{
+				final String name = AdHocAgent.class.getName();
+				final int    idx  = name.lastIndexOf( '.' );
+				classFileName = (idx == -1 ? name : name.substring( idx + 1 )) + ".class";
+			}
+			
+			final String uri = AdHocAgent.class.getResource( classFileName ).toString();
+			final Path self = Paths.get( URLDecoder.decode( uri.startsWith( "jar:file:/" ) ?
+			                                                uri.substring( "jar:file:/".length(), uri.indexOf( '!' ) ) :
+			                                                uri.substring( "file:/".length() ), Charset.defaultCharset().name() ) );
+			if (!load_props( self.getParent().resolve( "AdHocAgent.properties" ) ))
+				exit( "AdHocAgent.properties file is not found", 1 );
+		
+		}
+		if (provided_file_path == null) set_provided_file_path( props.getProperty( "description_file_path" ).trim() );
+	}
+	
+	public static void main( String[] args ) {
+		if (0 < args.length && args[0].equals( "--batch" ))
+			try
+			{
+				System.exit( Batch.run( Arrays.copyOfRange( args, 1, args.length ) ) );
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+				System.exit( 12 );
+			}
+		
+		if (0 < args.length && args[0].equals( "--watch" ))
+		{
+			watch = true;
+			args  = Arrays.copyOfRange( args, 1, args.length );
+		}
+		else if (0 < args.length && (args[0].equals( "--train" ) || args[0].equals( "--training" )))
+		{
+			train    = args[0].equals( "--train" );
+			training = !train;
+			args     = Arrays.copyOfRange( args, 1, args.length );
+		}
+		
+		final AdHocAgent agent = new AdHocAgent( working_dir, false );
+		try
+		{
+			agent.find_props( args );
+			
+			if (train) agent.train();
+			else if (training) agent.training();
+			else if (watch) agent.watching();
+			else agent.cycle();
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+			try
+			{
+				agent.exit( "", 12 );
+			} catch (Exception ex)
+			{
+				ex.printStackTrace();
+			}
+		}
+	}
+	
+	private final boolean batch;//the description of the --batch mode, see Batch
+	
+	private Phases phases = new Phases( null );//of the current cycle
+	
+	//the description of the --batch mode, the cycle without the console interaction
+	int job( String description ) {
+		try
+		{
+			find_props( new String[]{description} );
+			cycle();
+		} catch (Exit e) { return e.code; }
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			try
+			{
+				exit( "", 12 );
+			} catch (Exit ex) { return ex.code; }
+		}
+		return 0;
+	}
+	
+	private static boolean watch = false;//--watch mode: the process stays alive and repeats the cycle on every description change
+	
+	// =========================     fast start
+	
+	private static boolean train    = false;//--train mode: makes the class data sharing archive of the agent and javac classes
+	private static boolean training = false;//the child JVM of the --train mode, it processes the description once and exits
+	
+	//the launch scripts in the bin folder pass the archive to the JVM, if it exists.
+	//The JVM checks the archive against itself and the jar, the archive of other JVM or changed jar is ignored
+	static Path cds_archive() { return Paths.get( System.getProperty( "user.home" ), ".AdHocAgent", "AdHocAgent.jsa" ); }
+	
+	//runs the description processing in the child JVM, that dumps all classes it has loaded into the archive on exit
+	private void train() throws Exception {
+		final String version = System.getProperty( "java.specification.version" );
+		if (version.startsWith( "1." ) || Integer.parseInt( version ) < 13) exit( "The training needs Java 13 or newer, this is " + version, 1 );
+		
+		final Path archive = cds_archive();
+		final Path tmp     = archive.resolveSibling( archive.getFileName() + ".tmp" );
+		Files.createDirectories( archive.getParent() );
+		Files.deleteIfExists( tmp );
+		
+		LOG.info( "Training on " + provided_file_path );
+		final Process child = new ProcessBuilder( Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString(),
+		                                          "-XX:ArchiveClassesAtExit=" + tmp, "-Xlog:cds=off", "-Xlog:cds+dynamic=off",//classes the archive cannot keep are skipped quietly
+		                                          "-cp", System.getProperty( "java.class.path" ),//the same class path, as the launch has, otherwise the JVM ignores the archive
+		                                          AdHocAgent.class.getName(), "--training", provided_file_path.toAbsolutePath().toString() ).inheritIO().start();
+		
+		if (child.waitFor() != 0 || !Files.exists( tmp )) exit( "The training is failed, the archive is not created.", 1 );
+		
+		Files.move( tmp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		exit( "The class data sharing archive " + archive + " is ready. Launch the agent with bin/AdHocAgent or bin/AdHocAgent.cmd to use it.", 0 );
+	}
+	
+	//compile, validate and merge, as the real run does, without the server
+	private void training() {
+		props.setProperty( "compile_cache", "" );//the cached compilation does not load javac
+		try
+		{
+			process();
+		} catch (Exit e) { System.exit( e.code ); }
+		System.exit( description == null ? 1 : 0 );
+	}
+	
+	private static final int debounce_millis = 500;//quiet time after the last change before the cycle start
+	
+	//in the watch mode exit() finishes the current cycle only
+	private static final class Exit extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		final int code;
+		
+		Exit( int code ) {
+			super( null, null, false, false );
+			this.code = code;
+		}
+	}
+	
+	private void watching() throws Exception {
+		final WatchService        watcher = FileSystems.getDefault().newWatchService();
+		final Map<WatchKey, Path> dirs    = new HashMap<>();
+		final Set<Path>           roots   = new HashSet<>();//classpath folders and jars
+		
+		watch( watcher, dirs, provided_file_path.toAbsolutePath().getParent() );
+		for (String path : props.getProperty( "classpath" ).split( "," ))
+		{
+			final Path root = Paths.get( path.trim() ).toAbsolutePath().normalize();
+			if (Files.isDirectory( root ))
+			{
+				roots.add( root );
+				for (Path dir : Files.walk( root ).filter( Files::isDirectory ).collect( Collectors.toList() )) watch( watcher, dirs, dir );
+			}
+			else if (Files.exists( root ))
+			{
+				roots.add( root );
+				watch( watcher, dirs, root.getParent() );
+			}
+		}
+		
+		for (; ; )
+		{
+			try
+			{
+				cycle();
+			} catch (Exit e) {} catch (Exception e) { e.printStackTrace(); }
+			
+			for (WatchKey key; (key = watcher.poll()) != null; key.reset()) key.pollEvents();//forget own changes made by the cycle
+			
+			LOG.info( "Watching for changes of " + provided_file_path + " ..." );
+			
+			while (!changed( watcher, dirs, roots, watcher.take() )) ;
+			for (WatchKey key; (key = watcher.poll( debounce_millis, TimeUnit.MILLISECONDS )) != null; ) changed( watcher, dirs, roots, key );//debounce bursts of saves
+		}
+	}
+	
+	private static void watch( WatchService watcher, Map<WatchKey, Path> dirs, Path dir ) throws IOException {
+		if (!dirs.containsValue( dir )) dirs.put( dir.register( watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE ), dir );
+	}
+	
+	private boolean changed( WatchService watcher, Map<WatchKey, Path> dirs, Set<Path> roots, WatchKey key ) throws IOException {
+		final Path dir = dirs.get( key );
+		
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW)
+			{
+				changed = true;
+				continue;
+			}
+			
+			final Path path = dir.resolve( (Path) event.context() );
+			
+			if (path.equals( provided_file_path.toAbsolutePath() ) || roots.contains( path )) changed = true;
+			else if (roots.stream().anyMatch( path::startsWith ))
+				if (Files.isDirectory( path ))
+				{
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) watch( watcher, dirs, path );
+				}
+				else if (path.toString().endsWith( ".java" )) changed = true;
+		}
+		
+		if (!key.reset()) dirs.remove( key );
+		return changed;
+	}
+	
+	private void cycle() throws Exception {
+		wait_seconds = 0;
+		bytes_src    = null;
+		manifest     = null;
+		
+		final String report = props.getProperty( "report", "" ).trim();
+		phases = new Phases( report.isEmpty() ? null :
+		                     batch ? dest_dir_path.resolve( Paths.get( report ).getFileName() ) ://every description of the --batch mode has own report, in its generated files folder
+		                     Paths.get( report ) );
+		
+		if (!Files.exists( provided_file_path )) exit( "Description file " + provided_file_path + " is not exist.", 1 );
+		
+		// =========================     description file checking locally
+		
+		final File provided_file      = provided_file_path.toFile();
+		final long provided_file_time = provided_file.lastModified();
+		if (System.currentTimeMillis() < provided_file_time) exit( "Provided file " + provided_file_path + " is up-to-date.", 0 );
+		
+		dest_dir_path.resolve( info_file ).toFile().delete();//delete old info file
+		dest_dir_path.resolve( provided_file_path.getFileName().toString() ).toFile().delete();//delete old description file if exists
+		
+		project = props.getProperty( "login" ).replace( "@", "_|_" ) + "@" + provided_file_time + "@" + provided_file_path.getFileName();
+		final byte[] project_string_bytes = project.getBytes( StandardCharsets.UTF_8 );
+		
+		final String  server = props.getProperty( "server" );
+		final boolean tcp    = !server.startsWith( "http://" );
+		
+		framing = Integer.parseInt( props.getProperty( "tcp_framing", String.valueOf( Protocol.Framing_V1 ) ).trim() );
+		
+		long_poll = Boolean.parseBoolean( props.getProperty( "long_poll", "false" ).trim() );
+		
+		query_result = dst -> {//query the result by project name
+			try (OutputStream body = frame( tcp, long_poll ? Protocol.Subscribe : Protocol.Request, project_string_bytes.length, dst ))
+			{
+				body.write( project_string_bytes );
+			}
+		};
+		
+		if (provided_description_file_was_never_send()) upload_provided_file( tcp );
+		else //file was sent, just query result
+			bytes_src = query_result;
+		
+		
+		LOG.info( "Connecting to the " + server );
+		
+		for (; ; )
+		{
+			try
+			{
+				exchange( tcp, server );
+				failures = 0;
+			} catch (IOException e)
+			{
+				if (!long_poll) throw e;
+				backoff( e );//the same request again
+				continue;
+			}
+			
+			if (wait_seconds == 0) //server ask to re-upload the job
+				upload_provided_file( tcp );
+			else
+			{
+				if (!long_poll || bytes_src == query_result) waiting_for_result();//in long poll mode the result is queried right after upload, the server holds the query till the result is ready
+				bytes_src = query_result;
+			}
+		}
+	}
+	
+	//sends the bytes_src request and receives the reply
+	private void exchange( boolean tcp, String server ) throws Exception {
+		if (tcp)
+		{
+			final String[] parts = server.split( ":" );
+			
+			if (framing == Protocol.Framing_Session)//the connection stays open for the next requests
+			{
+				final Session.Exchange exchange = session( parts[0], Integer.parseInt( parts[1] ) ).exchange();
+				try (Phases.Phase phase = phases.begin( "upload" ); OutputStream os = phase.counting( exchange.request ))
+				{
+					send_manifest( tcp, os );
+					bytes_src.push_bytes_into( os );
+				}
+				receiving( exchange.reply );
+			}
+			else
+			{
+				final Phases.Phase connect = phases.begin( "connect" );
+				final Socket       socket;
+				final OutputStream os;
+				try
+				{
+					socket = new Socket( parts[0], Integer.parseInt( parts[1] ) );
+					os     = socket.getOutputStream();
+				} finally { connect.close(); }
+				
+				LOG.info( "Connected OK" );
+				
+				try (Phases.Phase phase = phases.begin( "upload" ))
+				{
+					final OutputStream dst = phase.counting( os );
+					send_manifest( tcp, dst );
+					bytes_src.push_bytes_into( dst );
+					os.flush();
+				}
+				
+				receiving( socket.getInputStream() );
+				os.close();
+			}
+		}
+		else if (!http_buffered && Boolean.parseBoolean( props.getProperty( "http_chunked", "true" ).trim() ))
+			try
+			{
+				http( server, true );
+			} catch (HttpRetryException e)//the streamed body cannot be sent again for the proxy or server authentication challenge
+			{
+				LOG.info( "The streamed request is not taken: " + e.getMessage() + ". The requests go buffered." );
+				http_buffered = true;
+				http( server, false );
+			}
+		else http( server, false );
+	}
+	
+	private boolean http_buffered = false;//the streamed request has got the authentication challenge, the requests go buffered, so they can be repeated
+	
+	//chunked - the body is streamed, otherwise HttpURLConnection buffers it and sends it with the Content-Length, and repeats it for the authentication
+	private void http( String server, boolean chunked ) throws Exception {
+		// proxy settings https://docs.oracle.com/javase/8/docs/api/java/net/doc-files/net-properties.html#Proxies
+		// uncomment lines to use proxy or pass proxi params via command line
+		//System.setProperty( "http.proxyHost", "127.0.0.1" );
+		//System.setProperty( "http.proxyPort", "1080" );
+		
+		final Phases.Phase      connect = phases.begin( "connect" );
+		final HttpURLConnection http;
+		final OutputStream      http_os;
+		try
+		{
+			http = (HttpURLConnection) new URL( server ).openConnection();
+			http.setDoOutput( true );
+			http.setRequestMethod( "POST" );
+			if (chunked) http.setChunkedStreamingMode( 64 * 1024 );//the body goes to the server while it is packed, not buffered whole
+			//else HttpURLConnection buffers the body and sends it with the Content-Length
+			http.addRequestProperty( "User-Agent", "AdHocAgent" );
+			http.addRequestProperty( "Accept", "*/*" );
+			http.setRequestProperty( "Content-Type", "application/octet-stream" );
+			
+			http_os = http.getOutputStream();
+		} finally { connect.close(); }
+		
+		try (Phases.Phase phase = phases.begin( "upload" ); OutputStream os = phase.counting( http_os ))
+		{
+			LOG.info( "Connected OK" );
+			
+			send_manifest( false, os );
+			bytes_src.push_bytes_into( os );
+		}
+		
+		try (InputStream src = http.getInputStream())
+		{
+			receiving( src );
+			for (byte[] rest = new byte[1024]; -1 < src.read( rest ); ) ;//the connection is reused by the next request, only if the reply is read till the end
+		}
+	}
+	
+	// =========================     long poll
+	
+	private boolean long_poll = false;//the server holds the result query till the result is ready, reporting Progress meanwhile
+	private int     failures  = 0;//connection failures in a row
+	
+	//long poll connection is long, so a failure is expected. Waits 1, 2, 4 ... up to 60 seconds before the next try
+	private void backoff( IOException e ) throws InterruptedException {
+		final int seconds = Math.min( 60, 1 << Math.min( failures++, 6 ) );
+		LOG.warning( "Connection failed: " + e + ". Next try in " + seconds + " seconds." );
+		Thread.sleep( seconds * 1000L );
+	}
+	
+	//percent of the job done and the estimated seconds left
+	private void progress( InputStream src ) throws IOException {
+		final int  percent = src.read();
+		final long eta     = Delta.read_varint( src );
+		
+		if (batch) return;//the concurrent descriptions do not share the console line
+		
+		String msg = "Progress " + percent + "%, " + eta + " seconds left.";
+		System.out.print( msg );
+		for (int i = msg.length(); 0 < i; i--) System.out.print( "\b" );
+	}
+	
+	
+	private void upload_provided_file( boolean tcp ) throws Exception {
+		description = null;
+		
+		if (provided_file_path.toString().endsWith( ".proto" ))//proto file conversion job
+			description = new Merged().file( provided_file_path, Files.size( provided_file_path ), Files.getLastModifiedTime( provided_file_path ).toMillis() );
+		else process(); //process  description file
+		
+		if (description == null) exit( "Description file " + provided_file_path + " is not packed.", 1 );
+		
+		final Merged content = description;
+		final byte[] whole;//the delta base of the next upload, only the delta upload needs the content on the heap
+		final byte[] entry;
+		try (Phases.Phase phase = phases.begin( "pack" ))
+		{
+			whole       = Boolean.parseBoolean( props.getProperty( "delta_upload", "false" ).trim() ) ? content.bytes() : null;
+			entry       = whole == null ? null : delta_entry( whole );
+			phase.bytes = entry == null ? content.length : entry.length;
+		}
+		final int type = entry == null ? Protocol.File : Protocol.Delta;
+		
+		bytes_src = dst -> {
+			if (tcp && framing == Protocol.Framing_V1)//the JAR length goes first
+			{
+				final ByteArrayOutputStream jar = new ByteArrayOutputStream( (int) Math.min( (entry == null ? content.length : entry.length) / 2 + 512, 1 << 24 ) );
+				pack( content, entry, jar );
+				try (OutputStream body = frame( true, type, jar.size(), dst )) { jar.writeTo( body ); }
+			}
+			else//packed right into the connection
+				try (OutputStream body = frame( tcp, type, -1, dst )) { pack( content, entry, body ); }
+			
+			uploaded       = whole;
+			uploaded_delta = entry != null;
+			
+			provided_file_path.toFile().setWritable( false );//this version of the description file is in process mark
+		};
+	}
+	
+	//single entry JAR, without manifest. The entry name carries the description content length and the project name. The entry is the delta or the content
+	private void pack( Merged content, byte[] delta, OutputStream dst ) throws IOException {
+		final JarOutputStream jar = new JarOutputStream( dst );
+		jar.putNextEntry( new JarEntry( content.length + "@" + project + (is_testing ? "@" : "") ) );
+		if (delta == null) content.writeTo( jar );
+		else jar.write( delta );
+		jar.closeEntry();
+		jar.finish();
+	}
+	
+	// =========================     delta upload
+	
+	private byte[]  uploaded       = null;//the content of the last upload waiting for the server acknowledge
+	private boolean uploaded_delta = false;
+	private boolean delta_refused  = false;//server does not know the base, next upload is full
+	
+	private static final int delta_max_edits = 2000;//in lines
+	
+	private Path delta_base_path() {
+		final String key = props.getProperty( "login" ) + "@" + provided_file_path.toAbsolutePath().normalize();
+		return Paths.get( System.getProperty( "user.home" ), ".AdHocAgent", "uploads", Integer.toHexString( key.hashCode() ) + "_" + provided_file_path.getFileName() );
+	}
+	
+	//Delta request entry: varint base project name length, base project name, Delta script. null - full upload
+	private byte[] delta_entry( byte[] content ) {
+		if (!Boolean.parseBoolean( props.getProperty( "delta_upload", "false" ).trim() ) || delta_refused) return null;
+		
+		final Path path = delta_base_path();
+		if (!Files.isRegularFile( path )) return null;
+		
+		try (DataInputStream src = new DataInputStream( new BufferedInputStream( Files.newInputStream( path ) ) ))
+		{
+			final byte[] base_project = src.readUTF().getBytes( StandardCharsets.UTF_8 );
+			final byte[] base         = new byte[src.readInt()];
+			src.readFully( base );
+			
+			final byte[] script = Delta.encode( base, content, delta_max_edits );
+			if (script == null || content.length / 2 < script.length) return null;//full upload is cheaper
+			
+			final ByteArrayOutputStream dst = new ByteArrayOutputStream( script.length + base_project.length + 8 );
+			Delta.write_varint( base_project.length, dst );
+			dst.write( base_project );
+			dst.write( script );
+			return dst.toByteArray();
+		} catch (IOException e) { return null; }
+	}
+	
+	//server has accepted the last upload, it is the base for the next delta
+	private void upload_acknowledged() {
+		if (uploaded == null) return;
+		final byte[] content = uploaded;
+		uploaded = null;
+		
+		if (!Boolean.parseBoolean( props.getProperty( "delta_upload", "false" ).trim() )) return;
+		
+		try
+		{
+			final Path path = delta_base_path();
+			Files.createDirectories( path.getParent() );
+			final Path tmp = Files.createTempFile( path.getParent(), path.getFileName().toString(), ".tmp" );
+			try (DataOutputStream dst = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ))
+			{
+				dst.writeUTF( project );
+				dst.writeInt( content.length );
+				dst.write( content );
+			}
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			delta_refused = false;
+		} catch (IOException e) { e.printStackTrace(); }
+	}
+	
+	// =========================     delta download
+	
+	private byte[] manifest = null;//the generated files the agent has, computed once per cycle
+	
+	//precedes the result query, so the server replies with the Patch of only added, changed and deleted generated files.
+	//The upload goes without it: the server takes the upload with Timeout, the result comes to the query
+	private void send_manifest( boolean tcp, OutputStream dst ) throws IOException {
+		if (!Boolean.parseBoolean( props.getProperty( "delta_download", "false" ).trim() ) || bytes_src != query_result) return;
+		if (manifest == null) manifest = manifest();
+		
+		try (OutputStream body = frame( tcp, Protocol.Manifest, manifest.length, dst ))
+		{
+			body.write( manifest );
+		}
+	}
+	
+	//varint files count, files: varint path length, path relative to the dest_dir_path with '/' delimiters, as in the reply JAR, SHA-256 of the file content
+	private byte[] manifest() throws IOException {
+		final MessageDigest md    = sha256();
+		final List<Path>    files = new ArrayList<>();
+		for (Path dir : generated_folders)
+			if (Files.isDirectory( dir ))
+				try (Stream<Path> walk = Files.walk( dir )) { walk.filter( Files::isRegularFile ).forEach( files::add ); }
+		
+		final ByteArrayOutputStream dst = new ByteArrayOutputStream( files.size() * 80 + 8 );
+		Delta.write_varint( files.size(), dst );
+		for (Path file : files)
 		{
-			LOG.info( "Loading " + props_path );
-			props.load( Files.newBufferedReader( props_path ) );
-			return true;
+			final byte[] name = dest_dir_path.relativize( file ).toString().replace( File.separatorChar, '/' ).getBytes( StandardCharsets.UTF_8 );
+			Delta.write_varint( name.length, dst );
+			dst.write( name );
+			dst.write( md.digest( Files.readAllBytes( file ) ) );
 		}
-		return false;
+		return dst.toByteArray();
 	}
 	
-	public static void main( String[] args ) {
+	private static MessageDigest sha256() {
 		try
 		{
-
-search_props:
+			return MessageDigest.getInstance( "SHA-256" );
+		} catch (NoSuchAlgorithmException e) { throw new RuntimeException( e ); }
+	}
+	
+	//host source folder of the generated file, like InC/HOST_NAME/, null if the file is outside host folders
+	private static String host_src_folder( String name ) {
+		final int i = name.indexOf( '/' );
+		final int j = name.indexOf( '/', i + 1 );
+		return name.startsWith( "In" ) && 0 < i && 0 < j ? name.substring( 0, j + 1 ) : null;
+	}
+	
+	//a Patch touched the file, its host needs deployment
+	private void patched( String name, Set<String> hosts_src_folders ) throws IOException {
+		final String host = host_src_folder( name );
+		if (host == null) return;
+		if (!host.equals( "InRS/ad_hoc-sys/" )) hosts_src_folders.add( host );
+		else if (Files.isDirectory( InRS ))//rust Lib is deployed with every rust host
+			try (Stream<Path> list = Files.list( InRS ))
 			{
-				if (0 < args.length)
-				{
-					set_provided_file_path( args[0] );
-					String name = dropRight( provided_file_path.getFileName(), 4 );
-					if (load_props( provided_file_path.getParent().resolve( name + "properties" ) )
-					    || load_props( provided_file_path.getParent().resolve( "AdHocAgent.properties" ) )
-					    || load_props( dest_dir_path.resolve( name + "properties" ) )) break search_props;
-				}
-				
-				if (load_props( dest_dir_path.resolve( "AdHocAgent.properties" ) )) break search_props;
-				
-				String classFileName;//the program binary path
-				{
-					final String name = AdHocAgent.class.getName();
-					final int    idx  = name.lastIndexOf( '.' );
-					classFileName = (idx == -1 ? name : name.substring( idx + 1 )) + ".class";
-				}
-				
-				final String uri = AdHocAgent.class.getResource( classFileName ).toString();
-				final Path self = Paths.get( URLDecoder.decode( uri.startsWith( "jar:file:/" ) ?
-				                                                uri.substring( "jar:file:/".length(), uri.indexOf( '!' ) ) :
-				                                                uri.substring( "file:/".length() ), Charset.defaultCharset().name() ) );
-				if (!load_props( self.getParent().resolve( "AdHocAgent.properties" ) ))
-					exit( "AdHocAgent.properties file is not found", 1 );
-				
+				list.filter( Files::isDirectory )
+				    .map( path -> "InRS/" + path.getFileName() + "/" )
+				    .filter( folder -> !folder.equals( host ) )
+				    .forEach( hosts_src_folders::add );
 			}
-			if (provided_file_path == null) set_provided_file_path( props.getProperty( "description_file_path" ).trim() );
-			
-			if (!Files.exists( provided_file_path )) exit( "Description file " + provided_file_path + " is not exist.", 1 );
-			
-			// =========================     description file checking locally
-			
-			final File provided_file      = provided_file_path.toFile();
-			final long provided_file_time = provided_file.lastModified();
-			if (System.currentTimeMillis() < provided_file_time) exit( "Provided file " + provided_file_path + " is up-to-date.", 0 );
-			
-			dest_dir_path.resolve( info_file ).toFile().delete();//delete old info file
-			dest_dir_path.resolve( provided_file_path.getFileName().toString() ).toFile().delete();//delete old description file if exists
-			
-			project = props.getProperty( "login" ).replace( "@", "_|_" ) + "@" + provided_file_time + "@" + provided_file_path.getFileName();
-			final byte[] project_string_bytes = project.getBytes( StandardCharsets.UTF_8 );
-			
-			final String  server = props.getProperty( "server" );
-			final boolean tcp    = !server.startsWith( "http://" );
-			
-			final BytesSrc query_result = dst -> {//query the result by project name
-				if (tcp) write_len( project_string_bytes.length, dst );
-				dst.write( Protocol.Request );
-				dst.write( project_string_bytes );
-			};
-			
-			if (provided_description_file_was_never_send()) upload_provided_file( tcp );
-			else //file was sent, just query result
-				bytes_src = query_result;
-			
-			
-			LOG.info( "Connecting to the " + server );
+	}
+	
+	//deletes the files of the Patch deletion list, and folders left empty
+	private void delete( String list, Set<String> hosts_src_folders ) throws IOException {
+		for (String name : list.split( "\\R" ))
+		{
+			if (name.isEmpty()) continue;
+			Path path = dest_dir_path.resolve( name ).normalize();
+			if (!path.startsWith( dest_dir_path ) || !Files.deleteIfExists( path )) continue;
+			patched( name, hosts_src_folders );
 			
-			if (tcp)
-				for (; ; )
-				{
-					final String[]     parts  = server.split( ":" );
-					final Socket       socket = new Socket( parts[0], Integer.parseInt( parts[1] ) );
-					final OutputStream os     = socket.getOutputStream();
-					
-					LOG.info( "Connected OK" );
-					
-					bytes_src.push_bytes_into( os );
-					os.flush();
-					
-					receiving( socket.getInputStream() );
-					os.close();
-					
-					if (wait_seconds == 0) //server ask to re-upload the job
-						upload_provided_file( true );
-					else
-					{
-						waiting_for_result();
-						bytes_src = query_result;
-					}
-				}
-			else
-				for (; ; )
-				{
-					// proxy settings https://docs.oracle.com/javase/8/docs/api/java/net/doc-files/net-properties.html#Proxies
-					// uncomment lines to use proxy or pass proxi params via command line
-					//System.setProperty( "http.proxyHost", "127.0.0.1" );
-					//System.setProperty( "http.proxyPort", "1080" );
-					
-					final HttpURLConnection http = (HttpURLConnection) new URL( server ).openConnection();
-					http.setDoOutput( true );
-					http.addRequestProperty( "User-Agent", "AdHocAgent" );
-					http.addRequestProperty( "Accept", "*/*" );
-					http.setRequestProperty( "Content-Type", "application/octet-stream" );
-					
-					final OutputStream os = http.getOutputStream();
-					
-					LOG.info( "Connected OK" );
-					
-					bytes_src.push_bytes_into( os );
-					os.flush();
-					
-					receiving( http.getInputStream() );
-					os.close();
-					
-					if (wait_seconds == 0) //server ask to re-upload the job
-						upload_provided_file( false );
-					else
-					{
-						waiting_for_result();
-						bytes_src = query_result;
-					}
-				}
-		} catch (Exception e)
+			for (path = path.getParent(); !path.equals( dest_dir_path ) && path.toFile().delete(); ) path = path.getParent();//deletes only empty folders
+		}
+	}
+	
+	private int framing = Protocol.Framing_V1;
+	
+	private static final Map<String, Session> sessions = new HashMap<>();//Framing_Session connections by the server, shared by the cycles and the --batch descriptions
+	
+	private Session session( String host, int port ) throws IOException {
+		synchronized (sessions)
 		{
-			e.printStackTrace();
-			try
-			{
-				exit( "", 12 );
-			} catch (Exception ex)
+			Session session = sessions.get( host + ":" + port );
+			if (session != null)
 			{
-				ex.printStackTrace();
+				if (session.alive()) return session;
+				session.close();//the broken one, if it is not closed yet
 			}
+			
+			final Phases.Phase connect = phases.begin( "connect" );
+			try { session = new Session( host, port ); } finally { connect.close(); }
+			sessions.put( host + ":" + port, session );
+			LOG.info( "Connected OK" );
+			return session;
 		}
 	}
 	
-	
-	private static void upload_provided_file( boolean tcp ) throws Exception {
-		if (provided_file_path.toString().endsWith( ".proto" ))//proto file conversion job
+	//writes the request header and returns the stream for the request body. Closing the body ends the request, but keeps dst open.
+	//length of the body, -1 if unknown
+	private OutputStream frame( boolean tcp, int type, long length, OutputStream dst ) throws IOException {
+		if (framing == Protocol.Framing_Session) tcp = false;//the Session delimits requests, the body goes as over HTTP
+		
+		if (!tcp || framing == Protocol.Framing_V1 && -1 < length && length <= Protocol.Framing_V1_max)
 		{
-			Files.copy( provided_file_path, tmp = Files.createTempDirectory( "ClientAgent" ).resolve( provided_file_path.toFile().length() + "@" + project + (is_testing ? "@" : "") ) );
-			
-			new ProcessBuilder( "jar", "cfM", "jar", tmp.getFileName().toString() ).directory( tmp.getParent().toFile() ).start().waitFor(); //produce JAR
-			tmp = tmp.getParent();
+			if (tcp) write_len( (int) length, dst );
+			dst.write( type );
+			return new FilterOutputStream( dst ) {
+				@Override public void write( byte[] b, int off, int len ) throws IOException { out.write( b, off, len ); }
+				
+				@Override public void close() throws IOException { out.flush(); }
+			};
 		}
-		else new AdHocAgent(); //process  description file
 		
+		write_len( 0, dst );//empty V1 frame is the V2 mark
+		dst.write( Protocol.Framing_V2 );
+		dst.write( type );
+		return new Chunked( dst );
+	}
+	
+	//V2 body: chunks of the varint length and bytes, the zero length chunk ends the body
+	private static final class Chunked extends OutputStream {
+		private final OutputStream dst;
+		private final byte[]       chunk = new byte[64 * 1024];
+		private       int          size  = 0;
 		
-		bytes_src = dst -> {
-			Path src = tmp.resolve( "jar" );
-			
-			if (tcp) write_len( (int) src.toFile().length(), dst );//write out file length
-			
-			dst.write( Protocol.File );//write out request type
-			Files.copy( src, dst );//write out file content
-			provided_file_path.toFile().setWritable( false );//this version of the description file is in process mark
-		};
+		Chunked( OutputStream dst ) { this.dst = dst; }
+		
+		@Override
+		public void write( int b ) throws IOException {
+			if (size == chunk.length) send();
+			chunk[size++] = (byte) b;
+		}
+		
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException {
+			for (int n; 0 < len; off += n, len -= n)
+			{
+				if (size == chunk.length) send();
+				System.arraycopy( b, off, chunk, size, n = Math.min( len, chunk.length - size ) );
+				size += n;
+			}
+		}
+		
+		private void send() throws IOException {
+			if (size == 0) return;
+			Delta.write_varint( size, dst );
+			dst.write( chunk, 0, size );
+			size = 0;
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			send();
+			dst.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			send();
+			Delta.write_varint( 0, dst );
+			dst.flush();
+		}
 	}
 	
+	//V1 length: 3 bytes, big-endian
 	private static void write_len( int len, OutputStream os ) throws IOException {
 		os.write( len >> 16 );
 		os.write( len >> 8 );
 		os.write( len );
 	}
 	
-	private static void waiting_for_result() throws InterruptedException {
-		while (0 < wait_seconds--)
+	private void waiting_for_result() throws InterruptedException {
+		final Phases.Phase phase = phases.begin( "wait" );
+		try
 		{
-			String msg = "Query result in " + wait_seconds + " seconds.";
-			System.out.print( msg );
-			Thread.sleep( 1000 );
-			for (int i = msg.length(); 0 < i; i--) System.out.print( "\b" );
-		}
+			while (0 < wait_seconds--)
+			{
+				if (batch)
+				{
+					Thread.sleep( 1000 );
+					continue;
+				}
+				String msg = "Query result in " + wait_seconds + " seconds.";
+				System.out.print( msg );
+				Thread.sleep( 1000 );
+				for (int i = msg.length(); 0 < i; i--) System.out.print( "\b" );
+			}
+		} finally { phase.close(); }
 	}
 	
-	private static boolean provided_description_file_was_never_send() {return provided_file_path.toFile().canWrite(); }
+	private boolean provided_description_file_was_never_send() {return provided_file_path.toFile().canWrite(); }
 	
-	private static int wait_seconds = 0;
+	private int wait_seconds = 0;
 	
-	private static void receiving( InputStream src ) throws Exception {
-		switch (src.read())
+	private void receiving( InputStream src ) throws Exception {
+		final Phases.Phase wait = phases.begin( "wait" );//till the first reply byte, the server is working on the request
+		int                type;
+		try
+		{
+			while ((type = src.read()) == Protocol.Progress) progress( src );
+		} finally { wait.close(); }
+		
+		switch (type)
 		{
+			case -1:
+				if (long_poll) throw new EOFException( "Connection closed by the server" );
+				break;
+			
 			case Protocol.Timeout:
 				wait_seconds = src.read();
+				if (0 < wait_seconds) upload_acknowledged();
+				else if (uploaded_delta) delta_refused = true;//server does not have the base of the delta
+				uploaded = null;
 				break;
 			
+			case Protocol.Patch:
 			case Protocol.File:
-				extract( src );
+				upload_acknowledged();
+				extract( src, type == Protocol.Patch );
 				
 				String name = provided_file_path.getFileName().toString();
 				if (name.endsWith( ".proto" ))
@@ -500,7 +1277,7 @@ search_props:
 				{
 					//getting header from current description file
 					String cur_src = new String( Files.readAllBytes( provided_file_path ), StandardCharsets.UTF_8 );
-					String header  = cur_src.substring( 0, project_declaration( cur_src ) );//current descriptor header is - code, up from project class declaration position
+					String header  = new Lexer( cur_src ).header();//current descriptor header is - code, up from project class declaration position
 					
 					new_src = header + new_src;//extracted new source
 				}
@@ -522,162 +1299,221 @@ search_props:
 		}
 	}
 	
-	private static void exit( String banner, int code ) {
+	private void exit( String banner, int code ) {
 		if (code == 0)
 			LOG.info( banner );
 		else
 			LOG.warning( banner );
 		
+		phases.report( project, code );
+		
+		if (watch || training || batch) throw new Exit( code );
+		
 		LOG.info( "Press ENTER to exit" );
 		try
 		{
 			System.in.read();
-			
+		
 		} catch (IOException ignored) {}
 		
 		System.exit( code );
 	}
 	
-	private static final Path dest_dir_path = FileSystems.getDefault().getPath( "" ).toAbsolutePath();//working/current directory
-	private static final Path InC           = dest_dir_path.resolve( "InC" );
-	private static final Path InCPP         = dest_dir_path.resolve( "InCPP" );
-	private static final Path InCS          = dest_dir_path.resolve( "InCS" );
-	private static final Path InKT          = dest_dir_path.resolve( "InKT" );
-	private static final Path InRS          = dest_dir_path.resolve( "InRS" );
-	private static final Path InTS          = dest_dir_path.resolve( "InTS" );
+	private static final Path working_dir = FileSystems.getDefault().getPath( "" ).toAbsolutePath();//current directory
+	
+	private final Path dest_dir_path;//the generated files folder, the working directory or the description folder of the --batch mode
+	private final Path InC;
+	private final Path InCPP;
+	private final Path InCS;
+	private final Path InKT;
+	private final Path InRS;
+	private final Path InTS;
+	
+	private final Path[] generated_folders;
 	
 	private static final Logger LOG = Logger.getLogger( "ClientAgent" );
 	
-	private static Path    provided_file_path = null;
-	private static boolean is_testing         = false;
+	private Path    provided_file_path = null;
+	private boolean is_testing         = false;
 	
-	private static void set_provided_file_path( String path ) {
+	void set_provided_file_path( String path ) {
 		provided_file_path = Paths.get( (is_testing = path.endsWith( "!" )) ? path.substring( 0, path.length() - 1 ) : path );
 		is_testing         = !provided_file_path.endsWith( ".proto" );
 	}
 	
-	private static String project = "";
+	private String project = "";
 	
-	private static void extract( InputStream src ) throws Exception {
-		final JarInputStream jar               = new JarInputStream( src );
-		final byte[]         buffer            = new byte[1024];
-		final long           time              = System.currentTimeMillis();
-		final Set<String>    hosts_src_folders = new HashSet<>();
+	//patch - the JAR holds only added and changed files and the deletion list, the rest generated files stay as they are
+	void extract( InputStream src, boolean patch ) throws Exception {
+		final Phases.Phase    download          = phases.begin( "download" );
+		final JarInputStream  jar               = new JarInputStream( download.counting( src ), false );
+		final byte[]          buffer            = new byte[64 * 1024];
+		final Set<Path>       received          = new HashSet<>();//the rest files of the host folders are stale
+		final Set<String>     hosts_src_folders = new HashSet<>();
+		final List<Future<?>> writes            = new ArrayList<>();
+		Path                  info              = null;
+		
+		//network reading goes on, while the workers are writing. Full queue makes the reading thread write itself
+		final int                threads = Runtime.getRuntime().availableProcessors();
+		final ThreadPoolExecutor writers = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>( threads * 2 ), new ThreadPoolExecutor.CallerRunsPolicy() );
 		
-		for (JarEntry je; (je = jar.getNextJarEntry()) != null; )//extracting everything from jar into destination_dir_path
+		final Phases.Phase extract = phases.begin( "extract" );//the writers work from the start of the download
+		try
 		{
-			String name = je.getName();
-			
-			final File file = dest_dir_path.resolve( name ).toFile();
-			
-			if (name.endsWith( "/" ))// a folder
+			try
 			{
-				file.mkdirs();
-				if (name.indexOf( '/', name.indexOf( '/' ) + 1 ) == name.length() - 1)//catch host path that looks like InC/HOST_NAME/
-					if (!name.endsWith( "/ad_hoc-sys/" ))//skip rust Lib
-						hosts_src_folders.add( name );//populate list of host_src_folders with InC.HOST_NAME
+				for (JarEntry je; (je = jar.getNextJarEntry()) != null; )//extracting everything from jar into destination_dir_path
+				{
+					String name = je.getName();
+					
+					final Path path = dest_dir_path.resolve( name );
+					received.add( path );
+					
+					if (name.endsWith( "/" ))// a folder
+					{
+						path.toFile().mkdirs();
+						if (name.indexOf( '/', name.indexOf( '/' ) + 1 ) == name.length() - 1)//catch host path that looks like InC/HOST_NAME/
+							if (!name.endsWith( "/ad_hoc-sys/" ))//skip rust Lib
+								hosts_src_folders.add( name );//populate list of host_src_folders with InC.HOST_NAME
+						continue;
+					}
+					
+					final ByteArrayOutputStream content = new ByteArrayOutputStream( 0 < je.getSize() ? (int) je.getSize() : buffer.length );
+					for (int len; -1 < (len = jar.read( buffer )); ) content.write( buffer, 0, len );
+					jar.closeEntry();
+					
+					if (patch && name.equals( deleted_list ))
+					{
+						delete( content.toString( "UTF-8" ), hosts_src_folders );
+						continue;
+					}
+					
+					if (patch) patched( name, hosts_src_folders );
+					
+					final byte[] bytes = content.toByteArray();
+					if (path.getFileName().toString().endsWith( info_file )) info = path;
+					extract.bytes += bytes.length;
+					writes.add( writers.submit( () -> write( path, bytes ) ) );
+				}
+				download.close();
 				
+				for (Future<?> write : writes)
+					try
+					{
+						write.get();
+					} catch (ExecutionException e)
+					{
+						if (e.getCause() instanceof Error) throw (Error) e.getCause();//OutOfMemoryError, as is
+						throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					}
+			} finally
+			{
+				download.close();
+				writers.shutdown();
 			}
-			else// a file
+			
+			if (info != null)
 			{
-				FileOutputStream out = new FileOutputStream( file );
-				for (int len; -1 < (len = jar.read( buffer )); ) out.write( buffer, 0, len );
-				
-				if (file.getName().endsWith( info_file ))
-				{
-					System.out.println( "Information from " + file.toPath() );
-					System.out.println( Files.lines( file.toPath(), StandardCharsets.UTF_8 ).collect( Collectors.joining( System.lineSeparator() ) ) );//print info message
-				}
-				jar.closeEntry();
-				out.flush();
-				out.close();
+				System.out.println( "Information from " + info );
+				System.out.println( Files.lines( info, StandardCharsets.UTF_8 ).collect( Collectors.joining( System.lineSeparator() ) ) );//print info message
 			}
-		}
-		jar.close();
-		
-		if (hosts_src_folders.isEmpty()) return;//nothing to deploy
-		
-		Files.walk( dest_dir_path )//delete only old folders and old files inside
-				.sorted( Comparator.reverseOrder() )
-				.forEach( p -> {
-					if (
-							(p.startsWith( InC ) ||
-							 p.startsWith( InCPP ) ||
-							 p.startsWith( InCS ) ||
-							 p.startsWith( InKT ) ||
-							 p.startsWith( InRS ) ||
-							 p.startsWith( InTS )
-							)
-							&& p.toFile().lastModified() < time) p.toFile().delete();
-				} );
+			jar.close();
+			
+			if (hosts_src_folders.isEmpty()) return;//nothing to deploy
+			
+			if (!patch)
+				for (Path dir : generated_folders)//delete folders and files were not received, unchanged files were not rewritten, so their time is old
+					if (Files.isDirectory( dir ))
+						try (Stream<Path> walk = Files.walk( dir ))
+						{
+							walk.sorted( Comparator.reverseOrder() ).filter( p -> !received.contains( p ) ).forEach( p -> p.toFile().delete() );
+						}
+		} finally { extract.close(); }
 		
 		//code deployment starting
-		
-		List<String[]> deploy_info         = new ArrayList<>();
-		List<String[]> deploy_paths_errors = new ArrayList<>();
-		String         deploy_errors       = "";
-		
-		for (String hosts_src_folder : hosts_src_folders)
+		final Phases.Phase deploy = phases.begin( "deploy" );
+		try
 		{
+			List<String[]>    deploy_info         = new ArrayList<>();
+			List<String[]>    deploy_paths_errors = new ArrayList<>();
+			String            deploy_errors       = "";
+			Map<Path, String> rust_lib_folders    = new LinkedHashMap<>();//deploy folder > mode, the RUST Lib is deployed once per folder
 			
-			final Path src_path = dest_dir_path.resolve( hosts_src_folder );
-			
-			String deploy_folders = props.getProperty( hosts_src_folder );
-			
-			if (deploy_folders == null) deploy_info.add( new String[]{hosts_src_folder, " > /dst/folder1 , ../../dst/folder2 ..."} );//add deploy folders information
-			else
+			for (String hosts_src_folder : hosts_src_folders)
 			{
-				List<Path> src_files = null;
 				
-				if (hosts_src_folder.startsWith( "InKT" ))
-				{
-					Path demo = src_path.resolve( "demo_" );
-					Path test = src_path.resolve( "test_" );
-					
-					src_files = Files.walk( src_path ).filter( path -> !(path.startsWith( demo ) || path.startsWith( test )) && Files.isRegularFile( path ) ).collect( Collectors.toList() );
-				}
-				else
-					src_files = Files.walk( src_path ).filter( path -> !skipped.contains( path.getFileName().toString() ) && Files.isRegularFile( path ) ).collect( Collectors.toList() );
+				final Path src_path = dest_dir_path.resolve( hosts_src_folder );
 				
-				deploy_folders = deploy_folders.trim();
-				if (deploy_folders.charAt( 0 ) == '>') deploy_folders = deploy_folders.substring( 1 );
+				String deploy_folders = props.getProperty( hosts_src_folder );
 				
-				for (String deploy_folder : deploy_folders.split( "," ))
+				if (deploy_folders == null) deploy_info.add( new String[]{hosts_src_folder, " > /dst/folder1 , ../../dst/folder2 ..."} );//add deploy folders information
+				else
 				{
-					File folder = new File( deploy_folder.trim() );
-					if (!folder.exists() && !folder.mkdirs()) deploy_paths_errors.add( new String[]{hosts_src_folder, " " + deploy_folder} ); ;
+					List<Path> src_files = null;
 					
-					if (hosts_src_folder.startsWith( "InRS" ))
+					if (hosts_src_folder.startsWith( "InKT" ))
 					{
-						Path demo = src_path.resolve( "demo" );
+						Path demo = src_path.resolve( "demo_" );
+						Path test = src_path.resolve( "test_" );
 						
-						Path dst = folder.toPath().resolve( Paths.get( hosts_src_folder ).getFileName() );
-						for (Path source : Files.walk( src_path ).filter( path -> !path.startsWith( demo ) && Files.isRegularFile( path ) ).collect( Collectors.toList() ))//copy RUST generated code
-							deploy_errors += copy( source, dst.resolve( src_path.relativize( source ) ) );
-						
-						dst = folder.toPath().resolve( "ad_hoc-sys" );
-						for (Path source : Files.walk( dest_dir_path.resolve( "InRS/ad_hoc-sys/" ) ).filter( path -> !path.startsWith( demo ) && Files.isRegularFile( path ) ).collect( Collectors.toList() ))//copy RUST Lib code
-							deploy_errors += copy( source, dst.resolve( src_path.relativize( source ) ) );
+						src_files = Files.walk( src_path ).filter( path -> !(path.startsWith( demo ) || path.startsWith( test )) && Files.isRegularFile( path ) ).collect( Collectors.toList() );
 					}
 					else
-						for (Path source : src_files)
-							deploy_errors += copy( source, folder.toPath().resolve( src_path.relativize( source ) ) );
+						src_files = Files.walk( src_path ).filter( path -> !skipped.contains( path.getFileName().toString() ) && Files.isRegularFile( path ) ).collect( Collectors.toList() );
+					
+					deploy_folders = deploy_folders.trim();
+					if (deploy_folders.charAt( 0 ) == '>') deploy_folders = deploy_folders.substring( 1 );
+					
+					for (String deploy_folder : deploy_folders.split( "," ))
+					{
+						String mode = deploy_mode( deploy_folder = deploy_folder.trim() );
+						if (mode == null) mode = props.getProperty( "deploy_mode", "copy" ).trim();
+						else deploy_folder = deploy_folder.substring( mode.length() + 1 ).trim();
+						
+						File folder = new File( deploy_folder );
+						if (!folder.exists() && !folder.mkdirs()) deploy_paths_errors.add( new String[]{hosts_src_folder, " " + deploy_folder} ); ;
+						
+						final Map<Path, String> files = new HashMap<>();//source file > its path in the deploy folder
+						if (hosts_src_folder.startsWith( "InRS" ))
+						{
+							Path demo = src_path.resolve( "demo" );
+							
+							Path host = Paths.get( hosts_src_folder ).getFileName();
+							Files.walk( src_path ).filter( path -> !path.startsWith( demo ) && Files.isRegularFile( path ) ).forEach( path -> files.put( path, host.resolve( src_path.relativize( path ) ).toString() ) );//RUST generated code
+							
+							rust_lib_folders.put( folder.toPath().toAbsolutePath().normalize(), mode );
+						}
+						else
+							for (Path source : src_files) files.put( source, src_path.relativize( source ).toString() );
+						
+						deploy_errors += deploy( hosts_src_folder, folder.toPath(), mode, files );
+					}
 				}
 			}
-		}
-		
-		if (!deploy_info.isEmpty())
-		{
-			System.out.println( "Add the following deployment instructions to the AdHocAgent.properties file:\n" );
-			print_table( deploy_info, '=' );
-		}
-		if (!deploy_paths_errors.isEmpty())
-		{
-			System.out.println( "The following deployment paths are cannot be created:\n" );
-			print_table( deploy_paths_errors, ':' );
-			System.out.println( " Check provided AdHocAgent.properties file content." );
-		}
-		if (!deploy_errors.isEmpty()) System.out.println( "Errors in the deployment process:\n" + deploy_errors );
+			
+			final Path lib = InRS.resolve( "ad_hoc-sys" );
+			if (!rust_lib_folders.isEmpty() && Files.isDirectory( lib ))
+			{
+				final Map<Path, String> files = new HashMap<>();
+				Files.walk( lib ).filter( Files::isRegularFile ).forEach( path -> files.put( path, lib.getFileName().resolve( lib.relativize( path ) ).toString() ) );//RUST Lib code
+				
+				for (Map.Entry<Path, String> folder : rust_lib_folders.entrySet())
+					deploy_errors += deploy( "InRS/ad_hoc-sys/", folder.getKey(), folder.getValue(), files );
+			}
+			
+			if (!deploy_info.isEmpty())
+			{
+				System.out.println( "Add the following deployment instructions to the AdHocAgent.properties file:\n" );
+				print_table( deploy_info, '=' );
+			}
+			if (!deploy_paths_errors.isEmpty())
+			{
+				System.out.println( "The following deployment paths are cannot be created:\n" );
+				print_table( deploy_paths_errors, ':' );
+				System.out.println( " Check provided AdHocAgent.properties file content." );
+			}
+			if (!deploy_errors.isEmpty()) System.out.println( "Errors in the deployment process:\n" + deploy_errors );
+		} finally { deploy.close(); }
 	}
 	
 	private static void print_table( List<String[]> table, char delim ) {
@@ -708,13 +1544,186 @@ search_props:
 			)
 	);
 	
-	private static String copy( Path src, Path dst ) {
+	// =========================     deployment
+	
+	//the file as it was deployed. The host deployment record lets copy only changed files and delete only the files gone from the generated set
+	private static final class Deployed {
+		final long   size;
+		final long   time;
+		final byte[] hash;
+		
+		Deployed( long size, long time, byte[] hash ) {
+			this.size = size;
+			this.time = time;
+			this.hash = hash;
+		}
+		
+		//the file is not changed since the deployment
+		boolean is( Path path ) {
+			final File file = path.toFile();
+			return file.isFile() && file.length() == size && file.lastModified() == time;
+		}
+	}
+	
+	private static final int DEPLOYED_VERSION = 2;
+	
+	private static Path deployed_path( String key ) {
+		return Paths.get( System.getProperty( "user.home" ), ".AdHocAgent", "deployed", Integer.toHexString( key.hashCode() ) );
+	}
+	
+	//the host deployment record: version, key, mode, files count, files: path in the deploy folder, size, time, SHA-256 of the content
+	private static Map<String, Deployed> deployed( String key, String mode ) {
+		final Map<String, Deployed> files = new HashMap<>();
+		final Path                  path  = deployed_path( key );
+		if (!Files.isRegularFile( path )) return files;
+		
+		try (DataInputStream src = new DataInputStream( new BufferedInputStream( Files.newInputStream( path ) ) ))
+		{
+			if (src.readInt() != DEPLOYED_VERSION || !src.readUTF().equals( key )) return files;
+			final boolean same_mode = src.readUTF().equals( mode );
+			
+			for (int i = src.readInt(); 0 < i; i--)
+			{
+				final String name = src.readUTF();
+				final long   size = src.readLong();
+				final long   time = src.readLong();
+				final byte[] hash = new byte[32];
+				src.readFully( hash );
+				files.put( name, new Deployed( size, time, same_mode ? hash : null ) );//deployed in other mode, to be deployed again
+			}
+		} catch (IOException e) { files.clear(); }//unknown state, everything is copied
+		return files;
+	}
+	
+	private static void deployed( String key, String mode, Map<String, Deployed> files ) throws IOException {
+		final Path path = deployed_path( key );
+		Files.createDirectories( path.getParent() );
+		final Path tmp = Files.createTempFile( path.getParent(), path.getFileName().toString(), ".tmp" );
+		try (DataOutputStream dst = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ))
+		{
+			dst.writeInt( DEPLOYED_VERSION );
+			dst.writeUTF( key );
+			dst.writeUTF( mode );
+			dst.writeInt( files.size() );
+			for (Map.Entry<String, Deployed> file : files.entrySet())
+			{
+				dst.writeUTF( file.getKey() );
+				dst.writeLong( file.getValue().size );
+				dst.writeLong( file.getValue().time );
+				dst.write( file.getValue().hash == null ? new byte[32] : file.getValue().hash );
+			}
+		}
+		Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+	
+	//how the files get into the deploy folder: copy, hardlink or symlink. Each destination can have own mode prefix, like  symlink:/dst/folder1
+	private static final String[] deploy_modes = {"copy", "hardlink", "symlink"};
+	
+	//the deploy mode prefix of the destination, null if none
+	private static String deploy_mode( String deploy_folder ) {
+		for (String mode : deploy_modes)
+			if (deploy_folder.startsWith( mode + ":" )) return mode;
+		return null;
+	}
+	
+	//puts the file into the deploy folder. A link that cannot be created, like across filesystems, falls back to the copy
+	private static void put( String mode, Path src, Path dst, byte[] bytes ) throws IOException {
+		Files.createDirectories( dst.getParent() );
+		
+		if (mode.equals( "hardlink" ) || mode.equals( "symlink" ))
+		{
+			final boolean hardlink = mode.equals( "hardlink" );
+			if (hardlink ?
+			    Files.exists( dst ) && !Files.isSymbolicLink( dst ) && Files.isSameFile( src, dst ) :
+			    Files.isSymbolicLink( dst ) && Files.readSymbolicLink( dst ).equals( src )) return;//already linked
+			
+			try
+			{
+				Files.deleteIfExists( dst );
+				if (hardlink) Files.createLink( dst, src );
+				else Files.createSymbolicLink( dst, src );
+				return;
+			} catch (IOException | UnsupportedOperationException e) { }
+		}
+		
+		if (Files.isSymbolicLink( dst ) || Files.exists( dst ) && Files.isSameFile( src, dst )) Files.delete( dst );//unlink, not to write through the link into the source
+		else if (same( dst, bytes )) return;
+		
+		try (FileChannel from = FileChannel.open( src, StandardOpenOption.READ );
+		     FileChannel to = FileChannel.open( dst, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ))
+		{
+			for (long pos = 0, size = from.size(); pos < size; ) pos += from.transferTo( pos, size - pos, to );//in-kernel copy where possible
+		}
+	}
+	
+	//deploys the changed files into the folder, deletes the files deployed before, but not generated anymore. Returns errors
+	static String deploy( String hosts_src_folder, Path folder, String mode, Map<Path, String> files ) {
+		final Path                  root   = folder.toAbsolutePath().normalize();
+		final String                key    = hosts_src_folder + "@" + root;
+		final Map<String, Deployed> was    = deployed( key, mode );
+		final Map<String, Deployed> now    = new HashMap<>();
+		final MessageDigest         md     = sha256();
+		String                      errors = "";
+		
+		for (Map.Entry<Path, String> file : files.entrySet())
+		{
+			final String   name     = file.getValue();
+			final Path     dst      = root.resolve( name );
+			final Deployed deployed = was.get( name );
+			try
+			{
+				final byte[] bytes = Files.readAllBytes( file.getKey() );
+				final byte[] hash  = md.digest( bytes );
+				
+				if (deployed == null || !Arrays.equals( deployed.hash, hash ) || !deployed.is( dst )) put( mode, file.getKey(), dst, bytes );
+				now.put( name, new Deployed( bytes.length, dst.toFile().lastModified(), hash ) );
+			} catch (Exception e)
+			{
+				if (deployed != null) now.put( name, deployed );//not a stale file
+				errors += e.toString() + "\n";
+			}
+		}
+		
+		for (Map.Entry<String, Deployed> file : was.entrySet())
+			if (!now.containsKey( file.getKey() ))
+			{
+				Path dst = root.resolve( file.getKey() );
+				if (!file.getValue().is( dst )) continue;//changed after the deployment, leave it
+				
+				dst.toFile().delete();
+				for (dst = dst.getParent(); !dst.equals( root ) && dst.toFile().delete(); ) dst = dst.getParent();//deletes only empty folders
+			}
+		
 		try
 		{
-			dst.getParent().toFile().mkdirs();
-			Files.copy( src, dst, StandardCopyOption.REPLACE_EXISTING );
-			return "";
-		} catch (Exception e) {return e.toString() + "\n";}
+			deployed( key, mode, now );
+		} catch (IOException e) { errors += e.toString() + "\n"; }
+		
+		return errors;
+	}
+	
+	//writes only the changed content, the time of the unchanged file stays, so the projects builds do not recompile it. true - the file was written
+	private static boolean write( Path path, byte[] bytes ) throws IOException {
+		if (same( path, bytes )) return false;
+		
+		Files.createDirectories( path.getParent() );
+		try (FileChannel dst = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ))
+		{
+			for (ByteBuffer buffer = ByteBuffer.wrap( bytes ); buffer.hasRemaining(); ) dst.write( buffer );
+		}
+		return true;
+	}
+	
+	private static boolean same( Path path, byte[] bytes ) {
+		if (!Files.isRegularFile( path )) return false;
+		try (FileChannel src = FileChannel.open( path, StandardOpenOption.READ ))
+		{
+			if (src.size() != bytes.length) return false;
+			
+			final ByteBuffer buffer = ByteBuffer.allocate( bytes.length );
+			while (buffer.hasRemaining() && -1 < src.read( buffer )) ;
+			return Arrays.equals( buffer.array(), bytes );
+		} catch (IOException e) { return false; }
 	}
 	
 	private static Path self_path() throws Exception {//the program binary path
@@ -732,209 +1741,27 @@ search_props:
 		                                     uri.substring( "file:/".length() ), Charset.defaultCharset().name() ) );
 	}
 	
-	private static final String     info_file = "unirail.info";
-	private static final Properties props     = new Properties();
-	
-	private static final Pattern root_declaration = Pattern.compile( "\\s*(public|private)\\s+interface\\s+(\\w+)\\s+((extends\\s+\\w+)|(implements\\s+\\w+( ,\\w+)*))?\\s*\\{" );
-	
-	private static int project_declaration( String src ) {
-		Matcher position = root_declaration.matcher( src );
-		return position.find() ? position.start( 1 ) : -1;
-	}
-	
-	static final Pattern imports_pattern = Pattern.compile( "import\\p{javaIdentifierIgnorable}*\\p{javaWhitespace}+(?:static\\p{javaIdentifierIgnorable}*\\p{javaWhitespace}+)?(\\p{javaJavaIdentifierStart}[\\p{javaJavaIdentifierPart}\\p{javaIdentifierIgnorable}]*(?:\\p{javaWhitespace}*\\.\\p{javaWhitespace}*\\*|(?:\\p{javaWhitespace}*\\.\\p{javaWhitespace}*\\p{javaJavaIdentifierStart}[\\p{javaJavaIdentifierPart}\\p{javaIdentifierIgnorable}]*)+(?:\\p{javaWhitespace}*\\.\\p{javaWhitespace}*\\*)?))\\p{javaWhitespace}*;" );
+	private static final String     info_file    = "unirail.info";
+	private static final String     deleted_list = "unirail.deleted";//Patch entry, generated files to delete, one per line
+	final Properties                props        = new Properties();
 	
 	interface Protocol {
 		int
-				File    = 0,
-				Request = 1,
-				Timeout = 2;
-	}
-	
-	private static boolean is_prohibited( String name ) {
-		if (name.startsWith( "_" ) || name.endsWith( "_" )) return true;
-		switch (name)
-		{
-			case "actual":
-			case "alignas":
-			case "annotation":
-			case "arguments":
-			case "array":
-			case "as":
-			case "asm":
-			case "async":
-			case "auto":
-			case "await":
-			case "become":
-			case "bool":
-			case "box":
-			case "by":
-			case "cast":
-			case "char16_t":
-			case "char32_t":
-			case "checked":
-			case "companion":
-			case "const_cast":
-			case "constexpr":
-			case "constructor":
-			case "crate":
-			case "crossinline":
-			case "data":
-			case "debugger":
-			case "decimal":
-			case "declare":
-			case "decltype":
-			case "delegate":
-			case "delete":
-			case "deprecated":
-			case "dllexport":
-			case "dllimport":
-			case "dst":
-			case "dyn":
-			case "dynamic":
-			case "dynamic_cast":
-			case "each":
-			case "eval":
-			case "Error":
-			case "event":
-			case "expect":
-			case "explicit":
-			case "export":
-			case "extern":
-			case "external":
-			case "field":
-			case "file":
-			case "fixed":
-			case "fn":
-			case "foreach":
-			case "friend":
-			case "from":
-			case "fun":
-			case "function":
-			case "gcnew":
-			case "generic":
-			case "get":
-			case "i128":
-			case "i16":
-			case "i32":
-			case "i64":
-			case "i8":
-			case "impl":
-			case "implicit":
-			case "in":
-			case "infix":
-			case "init":
-			case "inline":
-			case "inner":
-			case "int16_t":
-			case "int32_t":
-			case "int64_t":
-			case "int8_t":
-			case "interior":
-			case "internal":
-			case "is":
-			case "lateinit":
-			case "let":
-			case "literal":
-			case "lock":
-			case "loop":
-			case "macro":
-			case "match":
-			case "mod":
-			case "module":
-			case "move":
-			case "mut":
-			case "mutable":
-			case "naked":
-			case "namespace":
-			case "noexcept":
-			case "noinline":
-			case "noreturn":
-			case "nothrow":
-			case "novtable":
-			case "null":
-			case "nullptr":
-			case "number":
-			case "object":
-			case "only":
-			case "open":
-			case "operator":
-			case "out":
-			case "override":
-			case "pack":
-			case "param":
-			case "params":
-			case "priv":
-			case "property":
-			case "ptr":
-			case "pub":
-			case "readonly":
-			case "receiver":
-			case "ref":
-			case "register":
-			case "reified":
-			case "reinterpret_":
-			case "reinterpret_cast":
-			case "require":
-			case "safecast":
-			case "sbyte":
-			case "sealed":
-			case "selectany":
-			case "Self":
-			case "set":
-			case "setparam":
-			case "signed":
-			case "sizeof":
-			case "src":
-			case "stackalloc":
-			case "static_assert":
-			case "static_cast":
-			case "str":
-			case "string":
-			case "struct":
-			case "suspend":
-			case "symbol":
-			case "tailrec":
-			case "template":
-			case "thread":
-			case "trait":
-			case "type":
-			case "typealias":
-			case "typedef":
-			case "typeid":
-			case "typename":
-			case "typeof":
-			case "u128":
-			case "u16":
-			case "u32":
-			case "u64":
-			case "u8":
-			case "uint":
-			case "uint16_t":
-			case "uint32_t":
-			case "uint64_t":
-			case "ulong":
-			case "unchecked":
-			case "union":
-			case "unsafe":
-			case "unsigned":
-			case "unsized":
-			case "use":
-			case "ushort":
-			case "using":
-			case "uuid":
-			case "val":
-			case "value":
-			case "vararg":
-			case "virtual":
-			case "wchar_t":
-			case "where":
-			case "with":
-			case "yield":
-				
-				return true;
-		}
-		return false;
+				File      = 0,
+				Request   = 1,
+				Timeout   = 2,
+				Delta     = 3,//same as File, but the JAR entry is the difference from the previous acknowledged upload, see delta_entry()
+				Manifest  = 4,//precedes a request, hashes of the generated files the agent has, see manifest()
+				Patch     = 5,//same as File, but the JAR holds only added and changed files and the deleted_list entry
+				Subscribe = 6,//same as Request, but the server holds the connection till the result is ready. Timeout reply asks to come later
+				Progress  = 7;//precedes the reply, byte percent done, varint seconds left
+		
+		//TCP request framing
+		int
+				Framing_V1      = 1,//3 bytes body length, type, body
+				Framing_V1_max  = 0xFFFFFF,
+				Framing_V2      = 2,//3 zero bytes (empty V1 frame), version, type, body chunks: varint length and bytes, the zero length chunk ends the body
+				Framing_Session = 3;//3 zero bytes (empty V1 frame), version, then the connection carries many requests, see Session
 	}
 }
 
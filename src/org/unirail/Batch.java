@@ -0,0 +1,167 @@
+// AdHoc protocol - data interchange format and source code generator
+// Copyright 2019 Chikirev Sirguy, Unirail Group. All rights reserved.
+// info@unirail.org
+// https://github.com/cheblin/AdHoc-protocol
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package org.unirail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+//The --batch mode: many descriptions in one process, without the console interaction.
+//
+//   java -jar AdHocAgent.jar --batch /path/to/protocol_descriptor.java '/path/to/protocols/**.java' ...
+//
+//Every description has its own AdHocAgent, that keeps the cycle state. The agents share the javac session of the Compiler, with the persistent
+//sources compiled once per their contents and class path, and the Session connections. The compilations are serialized: one at a time in the warm javac.
+//Only the uploads, the waiting for the results and the extraction of the descriptions overlap.
+//The generated files of a description, and its report if the report is on, are in the working folder subfolder of the description name.
+//The process exit code is 0 if every description is done, otherwise the exit code of the first failed one.
+final class Batch {
+	
+	static int run( String[] args ) throws Exception {
+		final List<String> descriptions = new ArrayList<>();
+		for (String arg : args) descriptions.addAll( descriptions( arg ) );
+		
+		if (descriptions.isEmpty())
+		{
+			System.out.println( "No description files. java -jar AdHocAgent.jar --batch /path/to/protocol_descriptor.java '/path/to/protocols/**.java' ..." );
+			return 1;
+		}
+		
+		final Path        working = Paths.get( "" ).toAbsolutePath();
+		final List<Path>  dests   = new ArrayList<>();
+		final Set<String> names   = new HashSet<>();
+		for (String description : descriptions)
+		{
+			final String file = Paths.get( description.endsWith( "!" ) ? description.substring( 0, description.length() - 1 ) : description ).getFileName().toString();
+			final String name = file.endsWith( ".java" ) ? file.substring( 0, file.length() - 5 ) : file;
+			String       dest = name;
+			for (int i = 2; !names.add( dest ); i++) dest = name + "_" + i;//same names in different folders
+			dests.add( Files.createDirectories( working.resolve( dest ) ) );
+		}
+		
+		for (Handler handler : Logger.getLogger( "" ).getHandlers())//the log lines of the description
+		{
+			final Formatter formatter = handler.getFormatter();
+			handler.setFormatter( new Formatter() {
+				@Override
+				public String format( LogRecord record ) { return "[" + Thread.currentThread().getName() + "] " + formatter.format( record ); }
+			} );
+		}
+		
+		final ExecutorService       executor = executor( descriptions.size() );
+		final List<Future<Integer>> results  = new ArrayList<>();
+		final long[]                millis   = new long[descriptions.size()];
+		for (int i = 0; i < descriptions.size(); i++)
+		{
+			final int i_ = i;
+			results.add( executor.submit( () -> {
+				final long start = System.currentTimeMillis();
+				Thread.currentThread().setName( dests.get( i_ ).getFileName().toString() );
+				try
+				{
+					return new AdHocAgent( dests.get( i_ ), true ).job( descriptions.get( i_ ) );
+				} finally { millis[i_] = System.currentTimeMillis() - start; }
+			} ) );
+		}
+		executor.shutdown();
+		
+		int                  exit    = 0;
+		final List<String[]> summary = new ArrayList<>();
+		summary.add( new String[]{"Description", "Exit", "Seconds", "Generated files"} );
+		for (int i = 0; i < descriptions.size(); i++)
+		{
+			int code;
+			try
+			{
+				code = results.get( i ).get();
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+				code = 12;
+			}
+			if (exit == 0) exit = code;
+			summary.add( new String[]{descriptions.get( i ), String.valueOf( code ), String.format( "%.1f", millis[i] / 1000.0 ), dests.get( i ).toString()} );
+		}
+		
+		final int[] widths = new int[4];
+		for (String[] row : summary)
+			for (int c = 0; c < row.length; c++) widths[c] = Math.max( widths[c], row[c].length() );
+		for (String[] row : summary)
+			System.out.printf( "%-" + widths[0] + "s  %" + widths[1] + "s  %" + widths[2] + "s  %s%n", (Object[]) row );
+		
+		return exit;
+	}
+	
+	//the virtual threads, if the JVM has them (Java 21 or newer), otherwise the platform thread per description. The job mostly waits for the server
+	private static ExecutorService executor( int descriptions ) {
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+		} catch (ReflectiveOperationException e)
+		{
+			return Executors.newFixedThreadPool( descriptions, task -> {
+				final Thread thread = new Thread( task );
+				thread.setDaemon( true );
+				return thread;
+			} );
+		}
+	}
+	
+	//the path, or the files matching the glob, in the path order. The testing mark `!` at the end is kept
+	static List<String> descriptions( String arg ) throws IOException {
+		final String mark    = arg.endsWith( "!" ) ? "!" : "";
+		final String pattern = arg.substring( 0, arg.length() - mark.length() );
+		
+		int glob = 0;
+		while (glob < pattern.length() && "*?[{".indexOf( pattern.charAt( glob ) ) == -1) glob++;
+		if (glob == pattern.length()) return Collections.singletonList( arg );
+		
+		final int         slash   = Math.max( pattern.lastIndexOf( '/', glob ), pattern.lastIndexOf( File.separatorChar, glob ) );
+		final Path        base    = Paths.get( pattern.substring( 0, slash + 1 ) ).toAbsolutePath().normalize();
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher( "glob:" + pattern.substring( slash + 1 ) );
+		if (!Files.isDirectory( base )) return Collections.emptyList();
+		
+		try (Stream<Path> files = Files.walk( base ))
+		{
+			return files.filter( path -> Files.isRegularFile( path ) && matcher.matches( base.relativize( path ) ) )
+					.sorted()
+					.map( path -> path + mark )
+					.collect( Collectors.toList() );
+		}
+	}
+}
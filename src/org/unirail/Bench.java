@@ -0,0 +1,191 @@
+// AdHoc protocol - data interchange format and source code generator
+// Copyright 2019 Chikirev Sirguy, Unirail Group. All rights reserved.
+// info@unirail.org
+// https://github.com/cheblin/AdHoc-protocol
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package org.unirail;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+//Benchmarks of the agent hot paths on synthetic descriptions of 10, 1k and 10k packs.
+//Every benchmark is warmed up, then measured in iterations, an iteration repeats the operation at least for iteration_millis.
+//
+//   java -cp AdHocAgent.jar org.unirail.Bench /path/to/ad_hoc_annotations [benchmark name prefix]
+//
+//Run it in an empty folder, extract() and deployment work in the working folder.
+class Bench {
+	
+	private static final int[] sizes            = {10, 1_000, 10_000};
+	private static final int   warmups          = 2;
+	private static final int   iterations       = 5;
+	private static final int   iteration_millis = 500;
+	
+	interface Op {
+		void run() throws Exception;
+	}
+	
+	private static String only = "";
+	
+	private static void bench( String name, Op op ) throws Exception {
+		if (!name.startsWith( only )) return;
+		
+		for (int i = 0; i < warmups; i++) op.run();
+		
+		final double[] scores = new double[iterations];
+		for (int i = 0; i < iterations; i++)
+		{
+			int        ops   = 0;
+			final long start = System.nanoTime();
+			long       time;
+			do
+			{
+				op.run();
+				ops++;
+			}
+			while ((time = System.nanoTime() - start) < iteration_millis * 1_000_000L);
+			scores[i] = time / 1e6 / ops;
+		}
+		
+		double sum = 0, min = Double.MAX_VALUE, max = 0;
+		for (double score : scores)
+		{
+			sum += score;
+			min = Math.min( min, score );
+			max = Math.max( max, score );
+		}
+		System.out.printf( "%-28s %12.3f %12.3f %12.3f%n", name, sum / scores.length, min, max );
+	}
+	
+	public static void main( String[] args ) throws Exception {
+		if (args.length == 0)
+		{
+			System.out.println( "java -cp AdHocAgent.jar org.unirail.Bench /path/to/ad_hoc_annotations [benchmark name prefix]" );
+			return;
+		}
+		if (1 < args.length) only = args[1];
+		
+		final Path work = Paths.get( "" ).toAbsolutePath();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream( work ))
+		{
+			if (files.iterator().hasNext())
+			{
+				System.out.println( "Run in an empty folder, extract() and deployment work in " + work );
+				return;
+			}
+		}
+		
+		final String classpath = new File( args[0] ).getCanonicalPath();
+		final AdHocAgent agent = new AdHocAgent( work, false );
+		agent.props.setProperty( "classpath", classpath );
+		agent.props.setProperty( "compile_cache", "" );//measure the compilation, not the cache
+		agent.props.setProperty( "InC/HOST/", "> " + work.resolve( "deployed" ) );
+		
+		final Path descriptions = Files.createTempDirectory( "Bench" );
+		
+		System.out.printf( "%-28s %12s %12s %12s%n", "Benchmark, ms/op", "avg", "min", "max" );
+		
+		for (int packs : sizes)
+		{
+			final Path   path = descriptions.resolve( "Bench" + packs + ".java" );
+			final String src  = description( packs );
+			Files.write( path, src.getBytes( StandardCharsets.UTF_8 ) );
+			
+			agent.set_provided_file_path( path.toString() );
+			bench( "agent/" + packs, () -> {//compile, validate and merge the description
+				agent.description = null;
+				agent.process();
+				if (agent.description == null) throw new IllegalStateException( "Description " + path + " is not packed" );
+			} );
+			
+			bench( "compile/" + packs, () -> {
+				final Compiler comp = new Compiler();
+				comp.addSource( path );
+				comp.compile( false, "-classpath", classpath, "-encoding", "UTF-8" );
+			} );
+			
+			bench( "lexer/" + packs, () -> {//imports and the project declaration
+				if (new Lexer( src ).declaration < 0) throw new IllegalStateException();
+			} );
+		}
+		
+		for (int files : sizes)
+		{
+			final byte[] same = jar( files, 0 );
+			bench( "extract_unchanged/" + files, () -> agent.extract( new ByteArrayInputStream( same ), false ) );
+			
+			final byte[][] changed = {jar( files, 1 ), jar( files, 2 )};
+			final int[]    turn    = {0};
+			bench( "extract_changed/" + files, () -> agent.extract( new ByteArrayInputStream( changed[turn[0]++ & 1] ), false ) );
+			
+			final Map<Path, String> deploy = new HashMap<>();
+			final Path              host   = work.resolve( "InC" ).resolve( "HOST" );
+			for (int f = 0; f < files; f++) deploy.put( host.resolve( "file" + f + ".c" ), "file" + f + ".c" );
+			bench( "deploy_unchanged/" + files, () -> AdHocAgent.deploy( "InC/HOST/", work.resolve( "deployed" ), "copy", deploy ) );
+			
+			for (File dir : new File[]{work.resolve( "InC" ).toFile(), work.resolve( "deployed" ).toFile()})
+				if (dir.exists()) Files.walk( dir.toPath() ).sorted( Comparator.reverseOrder() ).forEach( p -> p.toFile().delete() );
+		}
+	}
+	
+	//packs with fields and constants, enums and the channel
+	static String description( int packs ) {
+		final StringBuilder src = new StringBuilder( packs * 120 );
+		src.append( "package org.bench;\n\n" );
+		src.append( "import org.unirail.AdHoc.*;\n\n" );
+		src.append( "public interface Bench" ).append( packs ).append( " {\n" );
+		src.append( "\tinterface Server extends InCS, InC {}\n" );
+		src.append( "\tinterface Client extends InC, InTS {}\n\n" );
+		
+		for (int p = 0; p < packs; p++)
+			if (p % 10 == 9) src.append( "\tenum Enum" ).append( p ).append( " { A, B, C }\n" );
+			else src.append( "\tclass Pack" ).append( p ).append( " { @I int x; String s; static final int C = " ).append( p ).append( "; }\n" );
+		
+		src.append( "\n\tclass Chan extends StdProtocol implements Server, Client {}\n}\n" );
+		return src.toString();
+	}
+	
+	//reply JAR of one host with the files of 4 KB
+	static byte[] jar( int files, int seed ) throws IOException {
+		final ByteArrayOutputStream dst = new ByteArrayOutputStream();
+		try (JarOutputStream jar = new JarOutputStream( dst ))
+		{
+			jar.putNextEntry( new JarEntry( "InC/" ) );
+			jar.putNextEntry( new JarEntry( "InC/HOST/" ) );
+			final byte[] content = new byte[4096];
+			for (int f = 0; f < files; f++)
+			{
+				new Random( f * 31L + seed ).nextBytes( content );
+				jar.putNextEntry( new JarEntry( "InC/HOST/file" + f + ".c" ) );
+				jar.write( content );
+			}
+		}
+		return dst.toByteArray();
+	}
+}
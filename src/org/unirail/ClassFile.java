@@ -0,0 +1,377 @@
+// AdHoc protocol - data interchange format and source code generator
+// Copyright 2019 Chikirev Sirguy, Unirail Group. All rights reserved.
+// info@unirail.org
+// https://github.com/cheblin/AdHoc-protocol
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package org.unirail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.*;
+
+//Reads fields and their constant values straight from the compiled class bytes, without class loading and initialization.
+//The same is built from the source by the Validator
+class ClassFile {
+	
+	static final int
+			ACC_PUBLIC    = 0x0001,
+			ACC_STATIC    = 0x0008,
+			ACC_FINAL     = 0x0010,
+			ACC_INTERFACE = 0x0200,
+			ACC_SYNTHETIC = 0x1000,
+			ACC_ENUM      = 0x4000;
+	
+	static final class Field {
+		final int    access;
+		final String name;
+		final String descriptor;
+		Object  value = null;
+		boolean known = false;//value is extracted from ConstantValue attribute or static initializer
+		String  at    = "";//the source position, if known
+		
+		Field( int access, String name, String descriptor ) {
+			this.access     = access;
+			this.name       = name;
+			this.descriptor = descriptor;
+		}
+		
+		boolean is( int flags ) { return (access & flags) == flags; }
+		
+		void value( Object value ) {
+			this.value = value;
+			known      = true;
+		}
+	}
+	
+	final int         access;
+	final String      name;//internal form, with '/' delimiters
+	final String      super_name;//internal form, null for java/lang/Object
+	final String[]    interfaces;
+	String simple_name;
+	String annotation = null;//the first runtime visible annotation type, internal form
+	String at         = "";//the source position, if known
+	final List<Field> fields         = new ArrayList<>();
+	final Set<String> member_classes = new HashSet<>();//internal names of the referenced member classes
+	
+	private final int[]    tags;
+	private final Object[] pool;
+	
+	ClassFile( byte[] bytes, int length ) throws IOException {
+		final DataInputStream src = new DataInputStream( new ByteArrayInputStream( bytes, 0, length ) );
+		if (src.readInt() != 0xCAFEBABE) throw new IOException( "Not a class file" );
+		src.readInt();//version
+		
+		final int count = src.readUnsignedShort();
+		tags = new int[count];
+		pool = new Object[count];
+		for (int i = 1; i < count; i++)
+			switch (tags[i] = src.readUnsignedByte())
+			{
+				case 1://Utf8
+					pool[i] = src.readUTF();
+					break;
+				case 3://Integer
+					pool[i] = src.readInt();
+					break;
+				case 4://Float
+					pool[i] = src.readFloat();
+					break;
+				case 5://Long
+					pool[i] = src.readLong();
+					i++;
+					break;
+				case 6://Double
+					pool[i] = src.readDouble();
+					i++;
+					break;
+				case 7://Class
+				case 8://String
+				case 16://MethodType
+				case 19://Module
+				case 20://Package
+					pool[i] = src.readUnsignedShort();
+					break;
+				case 9://Fieldref
+				case 10://Methodref
+				case 11://InterfaceMethodref
+				case 12://NameAndType
+				case 17://Dynamic
+				case 18://InvokeDynamic
+					pool[i] = new int[]{src.readUnsignedShort(), src.readUnsignedShort()};
+					break;
+				case 15://MethodHandle
+					src.readUnsignedByte();
+					pool[i] = src.readUnsignedShort();
+					break;
+				default:
+					throw new IOException( "Unknown constant pool tag " + tags[i] );
+			}
+		
+		access      = src.readUnsignedShort();
+		name        = class_name( src.readUnsignedShort() );
+		simple_name = simple_name( name );
+		final int super_class = src.readUnsignedShort();
+		super_name = super_class == 0 ? null : class_name( super_class );
+		interfaces = new String[src.readUnsignedShort()];
+		for (int i = 0; i < interfaces.length; i++) interfaces[i] = class_name( src.readUnsignedShort() );
+		
+		final Map<String, Field> by_name = new HashMap<>();
+		for (int f = src.readUnsignedShort(); 0 < f; f--)
+		{
+			final Field fld = new Field( src.readUnsignedShort(), utf( src.readUnsignedShort() ), utf( src.readUnsignedShort() ) );
+			fields.add( fld );
+			by_name.put( fld.name, fld );
+			
+			for (int a = src.readUnsignedShort(); 0 < a; a--)
+			{
+				final String attr = utf( src.readUnsignedShort() );
+				final int    len  = src.readInt();
+				if (attr.equals( "ConstantValue" )) fld.value( typed( constant( src.readUnsignedShort() ), fld.descriptor ) );
+				else src.skipBytes( len );
+			}
+		}
+		
+		for (int m = src.readUnsignedShort(); 0 < m; m--)
+		{
+			src.readUnsignedShort();//access flags
+			final boolean clinit = utf( src.readUnsignedShort() ).equals( "<clinit>" );
+			src.readUnsignedShort();//descriptor
+			
+			for (int a = src.readUnsignedShort(); 0 < a; a--)
+			{
+				final String attr = utf( src.readUnsignedShort() );
+				final int    len  = src.readInt();
+				if (clinit && attr.equals( "Code" ))
+				{
+					src.skipBytes( 4 );//max stack and locals
+					final byte[] code = new byte[src.readInt()];
+					src.readFully( code );
+					src.skipBytes( len - 8 - code.length );
+					static_initializer( code, by_name );
+				}
+				else src.skipBytes( len );
+			}
+		}
+		
+		for (int a = src.readUnsignedShort(); 0 < a; a--)
+		{
+			final String attr = utf( src.readUnsignedShort() );
+			final int    len  = src.readInt();
+			if (attr.equals( "InnerClasses" ))
+				for (int c = src.readUnsignedShort(); 0 < c; c--)
+				{
+					final int inner      = src.readUnsignedShort();
+					final int outer      = src.readUnsignedShort();
+					final int inner_name = src.readUnsignedShort();
+					src.skipBytes( 2 );//flags
+					if (outer != 0) member_classes.add( class_name( inner ) );
+					if (class_name( inner ).equals( name )) simple_name = inner_name == 0 ? "" : utf( inner_name );//anonymous class has no name
+				}
+			else if (attr.equals( "RuntimeVisibleAnnotations" ))
+			{
+				if (0 < src.readUnsignedShort())
+				{
+					final String type = utf( src.readUnsignedShort() );//descriptor Lorg/unirail/AdHoc/id;
+					annotation = type.substring( 1, type.length() - 1 );
+					src.skipBytes( len - 4 );
+				}
+			}
+			else src.skipBytes( len );
+		}
+	}
+	
+	//the class declared in the source
+	ClassFile( int access, String name, String simple_name, String super_name, String[] interfaces ) {
+		this.access      = access;
+		this.name        = name;
+		this.simple_name = simple_name;
+		this.super_name  = super_name;
+		this.interfaces  = interfaces;
+		tags             = null;
+		pool             = null;
+	}
+	
+	boolean is( int flags ) { return (access & flags) == flags; }
+	
+	//the name part after the package and the outer classes
+	static String simple_name( String name ) { return name.substring( Math.max( name.lastIndexOf( '/' ), name.lastIndexOf( '$' ) ) + 1 ); }
+	
+	private String utf( int index )        { return (String) pool[index]; }
+	
+	private String class_name( int index ) { return utf( (Integer) pool[index] ); }
+	
+	private Object constant( int index ) {
+		switch (tags[index])
+		{
+			case 3:
+			case 4:
+			case 5:
+			case 6:
+				return pool[index];
+			case 8:
+				return utf( (Integer) pool[index] );
+		}
+		return UNKNOWN;
+	}
+	
+	private static final Object UNKNOWN = new Object();
+	
+	//the same boxed type reflection returns for the field of the descriptor type
+	static Object typed( Object value, String descriptor ) {
+		if (!(value instanceof Integer)) return value;
+		final int i = (Integer) value;
+		switch (descriptor.charAt( 0 ))
+		{
+			case 'Z':
+				return i != 0;
+			case 'C':
+				return (char) i;
+			case 'B':
+				return (byte) i;
+			case 'S':
+				return (short) i;
+		}
+		return value;
+	}
+	
+	private static final Class<?>[] primitive_arrays = {null, null, null, null, boolean.class, char.class, float.class, double.class, byte.class, short.class, int.class, long.class};
+	
+	//evaluates constants pushing, arrays filling and own static fields assignment, stops on anything else
+	private void static_initializer( byte[] code, Map<String, Field> fields ) {
+		final Deque<Object> stack = new ArrayDeque<>();
+		
+		try
+		{
+			for (int pc = 0; pc < code.length; )
+			{
+				final int op = code[pc] & 0xFF;
+				switch (op)
+				{
+					case 0x01://aconst_null
+						stack.push( NULL );
+						pc++;
+						break;
+					case 0x02:
+					case 0x03:
+					case 0x04:
+					case 0x05:
+					case 0x06:
+					case 0x07:
+					case 0x08://iconst_m1 .. iconst_5
+						stack.push( op - 0x03 );
+						pc++;
+						break;
+					case 0x09:
+					case 0x0A://lconst_0 .. lconst_1
+						stack.push( (long) (op - 0x09) );
+						pc++;
+						break;
+					case 0x0B:
+					case 0x0C:
+					case 0x0D://fconst_0 .. fconst_2
+						stack.push( (float) (op - 0x0B) );
+						pc++;
+						break;
+					case 0x0E:
+					case 0x0F://dconst_0 .. dconst_1
+						stack.push( (double) (op - 0x0E) );
+						pc++;
+						break;
+					case 0x10://bipush
+						stack.push( (int) code[pc + 1] );
+						pc += 2;
+						break;
+					case 0x11://sipush
+						stack.push( (int) (short) ((code[pc + 1] & 0xFF) << 8 | code[pc + 2] & 0xFF) );
+						pc += 3;
+						break;
+					case 0x12://ldc
+						stack.push( constant( code[pc + 1] & 0xFF ) );
+						pc += 2;
+						break;
+					case 0x13:
+					case 0x14://ldc_w, ldc2_w
+						stack.push( constant( (code[pc + 1] & 0xFF) << 8 | code[pc + 2] & 0xFF ) );
+						pc += 3;
+						break;
+					case 0x59://dup
+						stack.push( stack.peek() );
+						pc++;
+						break;
+					case 0xBC://newarray
+						stack.push( Array.newInstance( primitive_arrays[code[pc + 1]], (Integer) stack.pop() ) );
+						pc += 2;
+						break;
+					case 0xBD://anewarray
+						if (!class_name( (code[pc + 1] & 0xFF) << 8 | code[pc + 2] & 0xFF ).equals( "java/lang/String" )) return;
+						stack.push( new String[(Integer) stack.pop()] );
+						pc += 3;
+						break;
+					case 0x4F:
+					case 0x50:
+					case 0x51:
+					case 0x52:
+					case 0x53:
+					case 0x54:
+					case 0x55:
+					case 0x56://iastore .. sastore
+					{
+						final Object value = stack.pop();
+						final int    index = (Integer) stack.pop();
+						final Object array = stack.pop();
+						if (value == UNKNOWN || array == UNKNOWN) return;
+						
+						final Class<?> type = array.getClass().getComponentType();
+						if (type == boolean.class) Array.setBoolean( array, index, (Integer) value != 0 );
+						else if (type == char.class) Array.setChar( array, index, (char) (int) (Integer) value );
+						else if (type == byte.class) Array.setByte( array, index, (byte) (int) (Integer) value );
+						else if (type == short.class) Array.setShort( array, index, (short) (int) (Integer) value );
+						else Array.set( array, index, value == NULL ? null : value );
+						pc++;
+						break;
+					}
+					case 0xB3://putstatic
+					{
+						final int[] ref = (int[]) pool[(code[pc + 1] & 0xFF) << 8 | code[pc + 2] & 0xFF];
+						final int[] nat = (int[]) pool[ref[1]];
+						
+						final Object value = stack.pop();
+						final Field  fld   = fields.get( utf( nat[0] ) );
+						if (fld != null && class_name( ref[0] ).equals( name ) && value != UNKNOWN)
+							fld.value( value == NULL ? null : typed( value, fld.descriptor ) );
+						pc += 3;
+						break;
+					}
+					default://return or not a constant expression
+						return;
+				}
+			}
+		} catch (RuntimeException e) { }//unexpected shape of the code, the rest values stay unknown
+	}
+	
+	private static final Object NULL = new Object();//null on the operand stack
+}
@@ -28,13 +28,20 @@
 package org.unirail;
 
 import javax.tools.*;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.OutputStream;
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.net.URI;
 import java.io.IOException;
@@ -42,20 +49,64 @@ import javax.tools.JavaFileObject;
 
 public class Compiler extends ClassLoader {
 	
+	static { ClassLoader.registerAsParallelCapable(); }//compiled classes are loaded and validated concurrently
+	
 	public Compiler() { super( ClassLoader.getSystemClassLoader() ); }
 	
-	public Map<String, BinaryCode> binaries = new HashMap<>();
+	public Map<String, BinaryCode> binaries = new ConcurrentHashMap<>();
 	
 	@Override
 	protected Class<?> findClass( String name ) throws ClassNotFoundException {
 		BinaryCode cc = binaries.get( name );
-		return cc == null ? super.findClass( name ) : defineClass( name, cc.getByteCode(), 0, cc.getByteCode().length );
+		if (cc == null && persistent_binaries != null) cc = persistent_binaries.get( name );
+		return cc == null ? super.findClass( name ) : defineClass( name, cc.getByteCode(), 0, cc.length() );
 	}
 	
+	//classpath source files javac has read during the last compilation, in the reading order
+	public final List<Path> used_sources = new ArrayList<>();
+	//classpath folders class files javac has read during the last compilation, the jars are in the cache key
+	final List<Path> used_classes = new ArrayList<>();
+	
 	private final class FileManager extends ForwardingJavaFileManager<JavaFileManager> {
 		
-		FileManager() { super( javac.getStandardFileManager( null, null, null ) ); }
+		FileManager() { super( standard_file_manager() ); }
 		
+		@Override
+		public Iterable<JavaFileObject> list( Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse ) throws IOException {
+			Iterable<JavaFileObject> files = super.list( location, packageName, kinds, recurse );
+			
+			if (location != StandardLocation.CLASS_PATH && !kinds.contains( JavaFileObject.Kind.SOURCE )) return files;
+			final boolean serve_persistent = location == StandardLocation.CLASS_PATH && persistent_binaries != null && !persistent_binaries.isEmpty();
+			
+			List<JavaFileObject> ret = new ArrayList<>();
+			for (JavaFileObject file : files)
+				if (file.getKind() == JavaFileObject.Kind.CLASS) ret.add( location == StandardLocation.CLASS_PATH ? new Used( file, used_classes ) : file );
+				else if (file.getKind() != JavaFileObject.Kind.SOURCE) ret.add( file );
+				else if (!serve_persistent || !persistent_binaries.containsKey( super.inferBinaryName( location, file ) ))//persistent sources are served precompiled
+					ret.add( new Used( file, used_sources ) );
+			
+			if (serve_persistent && kinds.contains( JavaFileObject.Kind.CLASS ))
+				for (BinaryCode bin : persistent_binaries.values())
+				{
+					final int    dot = bin.name.lastIndexOf( '.' );
+					final String pkg = dot == -1 ? "" : bin.name.substring( 0, dot );
+					if (pkg.equals( packageName ) || recurse && pkg.startsWith( packageName + "." )) ret.add( bin );
+				}
+			
+			return ret;
+		}
+		
+		@Override
+		public String inferBinaryName( Location location, JavaFileObject file ) {
+			return file instanceof BinaryCode ? ((BinaryCode) file).name : super.inferBinaryName( location, file instanceof Used ? ((Used) file).unwrap() : file );
+		}
+		
+		@Override
+		public boolean isSameFile( FileObject a, FileObject b ) {
+			if (a instanceof Used) a = ((Used) a).unwrap();
+			if (b instanceof Used) b = ((Used) b).unwrap();
+			return a instanceof SimpleJavaFileObject || b instanceof SimpleJavaFileObject ? a == b : super.isSameFile( a, b );//in-memory files
+		}
 		
 		@Override
 		public JavaFileObject getJavaFileForOutput( JavaFileManager.Location location, String className, JavaFileObject.Kind kind, FileObject sibling ) throws IOException {
@@ -71,14 +122,82 @@ public class Compiler extends ClassLoader {
 		public ClassLoader getClassLoader( JavaFileManager.Location location ) { return Compiler.this; }
 	}
 	
+	//source or class file from the classpath, remember it as a compilation dependency once javac reads it
+	private static final class Used extends ForwardingJavaFileObject<JavaFileObject> {
+		private final List<Path> used;
+		
+		Used( JavaFileObject file, List<Path> used ) {
+			super( file );
+			this.used = used;
+		}
+		
+		JavaFileObject unwrap() { return fileObject; }
+		
+		private void used() {
+			if (!"file".equals( fileObject.toUri().getScheme() )) return;//in a jar
+			final Path path = Paths.get( fileObject.toUri() );
+			if (!used.contains( path )) used.add( path );
+		}
+		
+		@Override
+		public CharSequence getCharContent( boolean ignoreEncodingErrors ) throws IOException {
+			used();
+			return super.getCharContent( ignoreEncodingErrors );
+		}
+		
+		@Override
+		public InputStream openInputStream() throws IOException {
+			used();
+			return super.openInputStream();
+		}
+		
+		@Override
+		public Reader openReader( boolean ignoreEncodingErrors ) throws IOException {
+			used();
+			return super.openReader( ignoreEncodingErrors );
+		}
+	}
+	
 	
 	private static final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
 	
-	private static SourceCode persistent_source = null;
-	private        SourceCode case_source       = null;
+	//Validator.call, if javac has the com.sun.source API for this class loader, null - not so with JDK 8 where javac is in tools.jar.
+	//Validator is reached by reflection only, the classes that refer it directly do not link without the API
+	private static final Method validation = validation();
+	
+	private static Method validation() {
+		try
+		{
+			Class.forName( "com.sun.source.util.JavacTask" );
+			return Class.forName( "org.unirail.Validator" ).getDeclaredMethod( "call", JavaCompiler.CompilationTask.class, boolean.class );
+		} catch (ReflectiveOperationException | LinkageError e) { return null; }
+	}
+	
+	public boolean                validate = false;//collect the validation data from the typed AST, if javac can
+	public Map<String, ClassFile> classes  = null;//the validation data of the last compilation: binary name > class, null - javac was not run or cannot, the class bytes are the source
+	
+	//javac session shared by all compilations in this JVM: keeps opened jars and the persistent library classes warm.
+	//The compilations take turns. A lock, not synchronized, so a waiting virtual thread does not pin its carrier thread
+	private static final ReentrantLock           session               = new ReentrantLock();
+	private static       StandardJavaFileManager standard_file_manager = null;
+	
+	private static StandardJavaFileManager standard_file_manager() {
+		if (standard_file_manager == null) standard_file_manager = javac.getStandardFileManager( null, null, StandardCharsets.UTF_8 );
+		return standard_file_manager;
+	}
+	
+	//precompiled persistent sources by the hash of their contents and of the compilation options, the class path included.
+	//The agents with different class paths or versions of the persistent sources do not compile against each other's classes
+	private static final Map<String, Map<String, BinaryCode>> libraries = new LinkedHashMap<String, Map<String, BinaryCode>>( 4, 0.75f, true ) {
+		@Override protected boolean removeEldestEntry( Map.Entry<String, Map<String, BinaryCode>> eldest ) { return 8 < size(); }
+	};
+	
+	private SourceCode              persistent_source   = null;
+	private Map<String, BinaryCode> persistent_binaries = null;//precompiled persistent sources of this compilation, null - none
+	private SourceCode              case_source         = null;
 	
 	
-	public static void addPersistentSource( Path src ) throws IOException {
+	public void addPersistentSource( Path src ) throws IOException {
 		if (Files.isDirectory( src ))
 			Files.walk( src ).forEach( path -> {
 				if (!Files.isDirectory( path ))
@@ -98,8 +217,16 @@ public class Compiler extends ClassLoader {
 		}
 	}
 	
-	public static void addPersistentSource( String className, String contents ) {
-		persistent_source = new SourceCode( className, contents, persistent_source );
+	public void addPersistentSource( String className, String contents ) {
+		SourceCode next = null;//rebuild the chain without the previous version of the class
+		for (SourceCode src = persistent_source; src != null; src = src.next)
+			if (src.className.equals( className ))
+			{
+				if (src.contents.equals( contents )) return;//already known
+			}
+			else next = new SourceCode( src.className, src.contents, next );
+		
+		persistent_source = new SourceCode( className, contents, next );
 	}
 	
 	public void addSource( Path src ) throws IOException {
@@ -122,13 +249,60 @@ public class Compiler extends ClassLoader {
 		}
 	}
 	
-	public void addSource( String className, String contents ) { case_source = new SourceCode( className, contents, case_source == null ? persistent_source : case_source ); }
+	public void addSource( String className, String contents ) { case_source = new SourceCode( className, contents, case_source ); }
 	
 	
 	public void compile() throws Exception                     {compile( true );}
 	
+	//folder of the on-disk compilation cache, null - cache is switched off
+	public Path cache_dir = null;
+	
 	public void compile( boolean ignoreWarnings, String... options ) throws Exception {
+		session.lock();
+		try
+		{
+			if (persistent_source != null)//compile persistent sources once per session, their contents and options
+			{
+				final String library = library_key( options );
+				if ((persistent_binaries = libraries.get( library )) == null)
+				{
+					final Compiler lib = new Compiler();//compiles persistent sources as ordinary
+					lib.case_source = persistent_source;
+					lib.cache_dir   = cache_dir;
+					lib.compile( true, options );
+					libraries.put( library, persistent_binaries = lib.binaries );
+				}
+			}
+			
+			final Path cached = cache_dir == null ? null : cache_dir.resolve( cache_key( options ) );
+			if (cached != null && restore( cached )) return;
+			
+			javac( ignoreWarnings, options );
+			
+			if (cached != null) store( cached );
+		} finally { session.unlock(); }
+	}
+	
+	//the hash of the compilation options and of the persistent sources content
+	private String library_key( String... options ) throws Exception {
+		final MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+		for (String option : options) md.update( (option + "\0").getBytes( StandardCharsets.UTF_8 ) );
+		for (SourceCode src = persistent_source; src != null; src = src.next)
+		{
+			md.update( (src.className + "\0").getBytes( StandardCharsets.UTF_8 ) );
+			md.update( src.contents.getBytes( StandardCharsets.UTF_8 ) );
+			md.update( (byte) 0 );
+		}
+		
+		return hex( md.digest() );
+	}
+	
+	private void javac( boolean ignoreWarnings, String... options ) throws Exception {
 		if (Compiler.javac == null) throw new NullPointerException( "Cannot find javac on the system. JRE is not enough, install JDK" );
+		binaries.clear();
+		used_sources.clear();
+		used_classes.clear();
+		classes = null;
 		DiagnosticCollector<JavaFileObject> collector   = new DiagnosticCollector<>();
 		FileManager                         fileManager = new FileManager();
 		JavaCompiler.CompilationTask task = javac.getTask( null, fileManager, collector, Arrays.asList( options ), null, () -> new Iterator<JavaFileObject>() {
@@ -144,7 +318,12 @@ public class Compiler extends ClassLoader {
 		} );
 		
 		
-		if (!task.call() || (0 < collector.getDiagnostics().size() && !ignoreWarnings))
+		boolean ok;
+		if (validate && validation != null && (classes = validated( task )) != null)
+			ok = collector.getDiagnostics().stream().noneMatch( d -> d.getKind() == Diagnostic.Kind.ERROR );
+		else ok = task.call();
+		
+		if (!ok || (0 < collector.getDiagnostics().size() && !ignoreWarnings))
 		{
 			final StringBuilder msg = new StringBuilder();
 			for (Diagnostic d : collector.getDiagnostics())
@@ -156,30 +335,203 @@ public class Compiler extends ClassLoader {
 			throw new Exception( msg.toString() );
 		}
 	}
-}
-
-
-class BinaryCode extends SimpleJavaFileObject {
-	private final ByteArrayOutputStream baos = new ByteArrayOutputStream() {
-		@Override public synchronized byte[] toByteArray() { return buf; }
-	};
 	
-	BinaryCode( String className ) throws Exception { super( new URI( className ), Kind.CLASS ); }
+	@SuppressWarnings( "unchecked" )
+	private Map<String, ClassFile> validated( JavaCompiler.CompilationTask task ) throws Exception {
+		try
+		{
+			return (Map<String, ClassFile>) validation.invoke( null, task, cache_dir != null );//the class bytes are needed for the cache only
+		} catch (InvocationTargetException e)
+		{
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
 	
-	final byte[] getByteCode()                      { return baos.toByteArray(); }
+	private static final int CACHE_VERSION = 3;
 	
-	@Override
-	public OutputStream openOutputStream() throws IOException { return baos; }
+	//key is the hash of the compiler options, of the class path jars stamps and of the all sources content.
+	//The class path folders are not walked, the class files javac has read are checked by restore(), as the used sources are
+	private String cache_key( String... options ) throws Exception {
+		final MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+		md.update( (CACHE_VERSION + "\0" + System.getProperty( "java.version" ) + "\0").getBytes( StandardCharsets.UTF_8 ) );
+		
+		for (String option : options) md.update( (option + "\0").getBytes( StandardCharsets.UTF_8 ) );
+		
+		for (int i = 0; i + 1 < options.length; i++)//the class path jars: an updated library makes the cached compilation stale
+			if (options[i].equals( "-classpath" ) || options[i].equals( "-cp" ) || options[i].equals( "--class-path" ))
+				for (String entry : options[i + 1].split( File.pathSeparator ))
+				{
+					if (entry.trim().isEmpty()) continue;
+					final Path path = Paths.get( entry.trim() );
+					if (Files.isRegularFile( path )) stamp( md, path );
+				}
+		
+		for (SourceCode chain : new SourceCode[]{case_source, persistent_source})
+			for (SourceCode src = chain; src != null; src = src.next)
+			{
+				md.update( (src.className + "\0").getBytes( StandardCharsets.UTF_8 ) );
+				md.update( src.contents.getBytes( StandardCharsets.UTF_8 ) );
+				md.update( (byte) 0 );
+			}
+		
+		return hex( md.digest() );
+	}
+	
+	private static String hex( byte[] digest ) {
+		final StringBuilder ret = new StringBuilder( digest.length * 2 );
+		for (byte b : digest) ret.append( String.format( "%02x", b & 0xFF ) );
+		return ret.toString();
+	}
+	
+	//the file path, size and modification time
+	private static void stamp( MessageDigest md, Path path ) throws IOException {
+		md.update( (path + "\0" + Files.size( path ) + "\0" + Files.getLastModifiedTime( path ).toMillis() + "\0").getBytes( StandardCharsets.UTF_8 ) );
+	}
+	
+	//the cached compilation result is valid only if the classpath sources and class files it depends on are untouched
+	private boolean restore( Path cached ) {
+		if (!Files.isRegularFile( cached )) return false;
+		
+		try (DataInputStream src = new DataInputStream( new BufferedInputStream( Files.newInputStream( cached ) ) ))
+		{
+			if (src.readInt() != CACHE_VERSION) return false;
+			
+			final List<Path> sources = untouched( src );
+			final List<Path> classes = sources == null ? null : untouched( src );
+			if (classes == null) return false;
+			
+			final Map<String, BinaryCode> restored = new ConcurrentHashMap<>();
+			for (int i = src.readInt(); 0 < i; i--)
+			{
+				final String name  = src.readUTF();
+				final byte[] bytes = new byte[src.readInt()];
+				src.readFully( bytes );
+				restored.put( name, new BinaryCode( name, bytes ) );
+			}
+			
+			binaries.clear();
+			binaries.putAll( restored );
+			used_sources.clear();
+			used_sources.addAll( sources );
+			used_classes.clear();
+			used_classes.addAll( classes );
+			
+			Files.setLastModifiedTime( cached, FileTime.fromMillis( System.currentTimeMillis() ) );//recently used, see trim()
+			return true;
+		} catch (Exception e) { return false; }//broken cache entry, just recompile
+	}
+	
+	//count, files: path, modification time, size
+	private static void stamps( List<Path> files, DataOutputStream dst ) throws IOException {
+		dst.writeInt( files.size() );
+		for (Path path : files)
+		{
+			dst.writeUTF( path.toString() );
+			dst.writeLong( Files.getLastModifiedTime( path ).toMillis() );
+			dst.writeLong( Files.size( path ) );
+		}
+	}
+	
+	//the files of the stamps, null - some file is changed or gone
+	private static List<Path> untouched( DataInputStream src ) throws IOException {
+		final List<Path> files = new ArrayList<>();
+		for (int i = src.readInt(); 0 < i; i--)
+		{
+			final Path path     = Paths.get( src.readUTF() );
+			final long modified = src.readLong();
+			final long size     = src.readLong();
+			if (!Files.isRegularFile( path ) || Files.getLastModifiedTime( path ).toMillis() != modified || Files.size( path ) != size) return null;
+			files.add( path );
+		}
+		return files;
+	}
+	
+	private void store( Path cached ) {
+		try
+		{
+			Files.createDirectories( cached.getParent() );
+			final Path tmp = Files.createTempFile( cached.getParent(), cached.getFileName().toString(), ".tmp" );
+			
+			try (DataOutputStream dst = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ))
+			{
+				dst.writeInt( CACHE_VERSION );
+				
+				stamps( used_sources, dst );
+				stamps( used_classes, dst );
+				
+				dst.writeInt( binaries.size() );
+				for (Map.Entry<String, BinaryCode> bin : binaries.entrySet())
+				{
+					dst.writeUTF( bin.getKey() );
+					dst.writeInt( bin.getValue().length() );
+					dst.write( bin.getValue().getByteCode(), 0, bin.getValue().length() );
+				}
+			}
+			
+			Files.move( tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			trim( cached.getParent() );
+		} catch (Exception e) { e.printStackTrace(); }//the cache is optional, compilation result is in memory anyway
+	}
+	
+	private static final long CACHE_MAX_BYTES = 64L << 20;
+	
+	//every description edit adds an entry: the least recently used entries over the CACHE_MAX_BYTES are deleted
+	private static void trim( Path dir ) throws IOException {
+		final List<Path> entries = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream( dir ))
+		{
+			for (Path file : files) if (Files.isRegularFile( file ) && !file.toString().endsWith( ".tmp" )) entries.add( file );
+		}
+		
+		final Map<Path, Long> used = new HashMap<>();
+		for (Path entry : entries) used.put( entry, Files.getLastModifiedTime( entry ).toMillis() );
+		entries.sort( Comparator.comparing( used::get, Comparator.reverseOrder() ) );
+		
+		long total = 0;
+		for (Path entry : entries)
+			if ((total += Files.size( entry )) > CACHE_MAX_BYTES) Files.deleteIfExists( entry );
+	}
+	
+	//compiled class in memory
+	static final class BinaryCode extends SimpleJavaFileObject {
+		private final ByteArrayOutputStream baos = new ByteArrayOutputStream() {
+			@Override public synchronized byte[] toByteArray() { return buf; }
+		};
+		
+		final String name;
+		
+		BinaryCode( String className ) throws Exception {
+			super( URI.create( "bytes:///" + className.replace( '.', '/' ) + Kind.CLASS.extension ), Kind.CLASS );
+			name = className;
+		}
+		
+		BinaryCode( String className, byte[] bytes ) throws Exception {
+			this( className );
+			baos.write( bytes, 0, bytes.length );
+		}
+		
+		final byte[] getByteCode()                      { return baos.toByteArray(); }//internal buffer, valid bytes count is length()
+		
+		final int length()                              { return baos.size(); }
+		
+		@Override
+		public OutputStream openOutputStream() throws IOException { return baos; }
+		
+		@Override
+		public InputStream openInputStream() throws IOException { return new ByteArrayInputStream( getByteCode(), 0, length() ); }
+	}
 }
 
 class SourceCode extends SimpleJavaFileObject {
-	private final String     contents;
-	final         SourceCode next;
+	final String     className;
+	final String     contents;
+	final SourceCode next;
 	
 	SourceCode( String className, String contents, SourceCode next ) {
 		super( URI.create( "string:///" + className.replace( '.', '/' ) + Kind.SOURCE.extension ), Kind.SOURCE );
-		this.next     = next;
-		this.contents = contents;
+		this.className = className;
+		this.next      = next;
+		this.contents  = contents;
 	}
 	
 	public CharSequence getCharContent( boolean ignoreEncodingErrors ) throws IOException { return contents; }
@@ -0,0 +1,212 @@
+// AdHoc protocol - data interchange format and source code generator
+// Copyright 2019 Chikirev Sirguy, Unirail Group. All rights reserved.
+// info@unirail.org
+// https://github.com/cheblin/AdHoc-protocol
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package org.unirail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//Line based difference between the last acknowledged upload and the new one (Myers O(ND) algorithm).
+//Script is a sequence of operations:
+//   COPY   varint offset in the base, varint length
+//   INSERT varint length, bytes
+//   END
+final class Delta {
+	
+	static final int
+			COPY   = 0,
+			INSERT = 1,
+			END    = 2;
+	
+	private final byte[] base;
+	private final byte[] content;
+	private final int[]  a;//lines starts, plus the end
+	private final int[]  b;
+	private final int[]  a_hash;
+	private final int[]  b_hash;
+	
+	private Delta( byte[] base, byte[] content ) {
+		this.base    = base;
+		this.content = content;
+		a            = lines( base );
+		b            = lines( content );
+		a_hash       = hashes( base, a );
+		b_hash       = hashes( content, b );
+	}
+	
+	//null if the edit distance in lines exceeds max_edits
+	static byte[] encode( byte[] base, byte[] content, int max_edits ) throws IOException {
+		final Delta delta = new Delta( base, content );
+		final int[] match = delta.match( max_edits );
+		return match == null ? null : delta.script( match );
+	}
+	
+	static byte[] decode( byte[] base, InputStream script ) throws IOException {
+		final ByteArrayOutputStream dst = new ByteArrayOutputStream( base.length );
+		for (int op; (op = script.read()) != END; )
+			switch (op)
+			{
+				case COPY:
+					dst.write( base, (int) read_varint( script ), (int) read_varint( script ) );
+					break;
+				case INSERT:
+					final byte[] bytes = new byte[(int) read_varint( script )];
+					for (int i = 0, n; i < bytes.length; i += n)
+						if ((n = script.read( bytes, i, bytes.length - i )) < 0) throw new IOException( "Unexpected end of the delta script" );
+					dst.write( bytes );
+					break;
+				default:
+					throw new IOException( "Broken delta script" );
+			}
+		return dst.toByteArray();
+	}
+	
+	private static int[] lines( byte[] src ) {
+		int count = 1;
+		for (int i = 0; i < src.length; i++) if (src[i] == '\n' && i + 1 < src.length) count++;
+		
+		final int[] ret = new int[count + 1];
+		for (int i = 0, line = 1; i < src.length; i++) if (src[i] == '\n' && i + 1 < src.length) ret[line++] = i + 1;
+		ret[count] = src.length;
+		return ret;
+	}
+	
+	private static int[] hashes( byte[] src, int[] lines ) {
+		final int[] ret = new int[lines.length - 1];
+		for (int line = 0; line < ret.length; line++)
+		{
+			int h = 1;
+			for (int i = lines[line]; i < lines[line + 1]; i++) h = 31 * h + src[i];
+			ret[line] = h;
+		}
+		return ret;
+	}
+	
+	private boolean same( int x, int y ) {
+		if (a_hash[x] != b_hash[y]) return false;
+		final int len = a[x + 1] - a[x];
+		if (len != b[y + 1] - b[y]) return false;
+		for (int i = 0; i < len; i++) if (base[a[x] + i] != content[b[y] + i]) return false;
+		return true;
+	}
+	
+	//for every content line - the matching base line or -1
+	private int[] match( int max_edits ) {
+		final int n     = a.length - 1;
+		final int m     = b.length - 1;
+		final int limit = Math.min( n + m, max_edits );
+		final int off   = limit + 1;
+		
+		final int[]       v     = new int[2 * limit + 3];
+		final List<int[]> trace = new ArrayList<>();//the v[-d..d] slice per edit step, the backtrack reads only it: O(d^2) memory, not O(d * limit)
+		
+		for (int d = 0; d <= limit; d++)
+		{
+			trace.add( Arrays.copyOfRange( v, off - d, off + d + 1 ) );
+			for (int k = -d; k <= d; k += 2)
+			{
+				int x = k == -d || k != d && v[off + k - 1] < v[off + k + 1] ? v[off + k + 1] : v[off + k - 1] + 1;
+				int y = x - k;
+				while (x < n && y < m && same( x, y ))
+				{
+					x++;
+					y++;
+				}
+				v[off + k] = x;
+				
+				if (n <= x && m <= y) return backtrack( trace, d, n, m );
+			}
+		}
+		return null;
+	}
+	
+	private static int[] backtrack( List<int[]> trace, int d, int x, int y ) {
+		final int[] ret = new int[y];
+		Arrays.fill( ret, -1 );
+		
+		for (; 0 < d; d--)
+		{
+			final int[] v      = trace.get( d );//v[k] is at v[d + k]
+			final int   k      = x - y;
+			final int   prev_k = k == -d || k != d && v[d + k - 1] < v[d + k + 1] ? k + 1 : k - 1;
+			final int   prev_x = v[d + prev_k];
+			final int   prev_y = prev_x - prev_k;
+			
+			for (; prev_x < x && prev_y < y; ) ret[--y] = --x;//diagonal
+			x = prev_x;
+			y = prev_y;
+		}
+		while (0 < x && 0 < y) ret[--y] = --x;
+		return ret;
+	}
+	
+	private byte[] script( int[] match ) throws IOException {
+		final ByteArrayOutputStream dst = new ByteArrayOutputStream();
+		
+		for (int line = 0; line < match.length; )
+			if (match[line] == -1)
+			{
+				final int start = line;
+				while (line < match.length && match[line] == -1) line++;
+				dst.write( INSERT );
+				write_varint( b[line] - b[start], dst );
+				dst.write( content, b[start], b[line] - b[start] );
+			}
+			else
+			{
+				final int start = line;
+				for (line++; line < match.length && match[line] == match[line - 1] + 1; ) line++;
+				dst.write( COPY );
+				write_varint( a[match[start]], dst );
+				write_varint( a[match[line - 1] + 1] - a[match[start]], dst );
+			}
+		
+		dst.write( END );
+		return dst.toByteArray();
+	}
+	
+	//unsigned LEB128, the one encoding of the lengths and counts in the Delta scripts, the V2 framing, the Session frames and the manifest
+	static void write_varint( long value, OutputStream dst ) throws IOException {
+		for (; (value & ~0x7FL) != 0; value >>>= 7) dst.write( (int) (value & 0x7F | 0x80) );
+		dst.write( (int) value );
+	}
+	
+	static long read_varint( InputStream src ) throws IOException {
+		long ret = 0;
+		for (int shift = 0, b; ; shift += 7)
+		{
+			if ((b = src.read()) < 0) throw new IOException( "Unexpected end of the varint" );
+			ret |= (long) (b & 0x7F) << shift;
+			if (b < 0x80) return ret;
+		}
+	}
+}
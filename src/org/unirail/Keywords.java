@@ -0,0 +1,103 @@
+// AdHoc protocol - data interchange format and source code generator
+// Copyright 2019 Chikirev Sirguy, Unirail Group. All rights reserved.
+// info@unirail.org
+// https://github.com/cheblin/AdHoc-protocol
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package org.unirail;
+
+import java.util.HashMap;
+
+//Names that are reserved in the AdHoc target languages. Every name maps to the bit set of the languages it collides with
+final class Keywords {
+	
+	static final int
+			C          = 1,
+			CPP        = 1 << 1,
+			CS         = 1 << 2,
+			KT         = 1 << 3,
+			RS         = 1 << 4,
+			TS         = 1 << 5,
+			ALL        = C | CPP | CS | KT | RS | TS,
+			GENERATED  = 1 << 6,//names used by the generated code in any language
+			UNDERSCORE = 1 << 7;//leading or trailing '_'
+	
+	private static final String[] hosts = {"InC", "InCPP", "InCS", "InKT", "InRS", "InTS"};//in the languages bits order
+	private static final String[] names = {"C", "C++", "C#", "Kotlin", "Rust", "TypeScript", "generated code", "leading or trailing _"};
+	
+	//language bit of the host interface or the deployment folder InC, InCPP ... name, 0 if unknown
+	static int language( String host ) {
+		for (int i = 0; i < hosts.length; i++) if (hosts[i].equals( host )) return 1 << i;
+		return 0;
+	}
+	
+	//bits of the languages, among the targets, where the name is prohibited. 0 - name is allowed. No allocations
+	static int prohibited( String name, int targets ) {
+		final int     ret   = name.startsWith( "_" ) || name.endsWith( "_" ) ? UNDERSCORE : 0;
+		final Integer langs = index.get( name );
+		return langs == null ? ret : ret | langs & (targets | GENERATED);
+	}
+	
+	static String languages( int bits ) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < names.length; i++)
+			if ((bits & 1 << i) != 0) sb.append( sb.length() == 0 ? "" : ", " ).append( names[i] );
+		return sb.toString();
+	}
+	
+	private static final HashMap<String, Integer> index = new HashMap<>( 512 );
+	
+	private static void add( int langs, String... words ) { for (String word : words) index.merge( word, langs, ( a, b ) -> a | b ); }
+	
+	static
+	{
+		add( GENERATED, "dst", "only", "pack", "ptr", "reinterpret_", "src" );
+		
+		add( C, "alignas", "asm", "auto", "bool", "char16_t", "char32_t", "constexpr", "dllexport", "dllimport", "extern", "inline", "int16_t", "int32_t", "int64_t", "int8_t",
+		     "noreturn", "register", "signed", "sizeof", "static_assert", "struct", "typedef", "uint16_t", "uint32_t", "uint64_t", "union", "unsigned", "wchar_t" );
+		
+		add( CPP, "alignas", "array", "asm", "auto", "bool", "cast", "char16_t", "char32_t", "const_cast", "constexpr", "decltype", "delegate", "delete", "deprecated",
+		     "dllexport", "dllimport", "dynamic_cast", "each", "event", "explicit", "export", "extern", "friend", "gcnew", "generic", "inline", "int16_t", "int32_t",
+		     "int64_t", "int8_t", "interior", "literal", "module", "mutable", "naked", "namespace", "noexcept", "noinline", "noreturn", "nothrow", "novtable",
+		     "nullptr", "operator", "override", "property", "register", "reinterpret_cast", "safecast", "sealed", "selectany", "signed", "sizeof", "static_assert",
+		     "static_cast", "struct", "template", "thread", "typedef", "typeid", "typename", "uint16_t", "uint32_t", "uint64_t", "union", "unsigned", "using", "uuid",
+		     "virtual", "wchar_t" );
+		
+		add( CS, "as", "async", "await", "bool", "checked", "decimal", "delegate", "dynamic", "event", "explicit", "extern", "file", "fixed", "foreach", "from", "get",
+		     "implicit", "in", "init", "internal", "is", "lock", "namespace", "null", "object", "operator", "out", "override", "params", "readonly", "ref", "sbyte",
+		     "sealed", "set", "sizeof", "stackalloc", "string", "struct", "typeof", "uint", "ulong", "unchecked", "unsafe", "ushort", "using", "value", "virtual",
+		     "where", "yield" );
+		
+		add( KT, "actual", "annotation", "as", "by", "companion", "crossinline", "data", "dynamic", "expect", "external", "field", "file", "fun", "get", "in", "infix",
+		     "init", "inline", "inner", "internal", "is", "lateinit", "noinline", "null", "object", "open", "operator", "out", "override", "param", "property",
+		     "receiver", "reified", "sealed", "set", "setparam", "suspend", "tailrec", "typealias", "val", "value", "vararg", "where" );
+		
+		add( RS, "as", "async", "await", "become", "box", "crate", "dyn", "Error", "fn", "i128", "i16", "i32", "i64", "i8", "impl", "in", "let", "loop", "macro",
+		     "match", "mod", "move", "mut", "override", "priv", "pub", "ref", "Self", "str", "struct", "trait", "type", "typeof", "u128", "u16", "u32", "u64", "u8",
+		     "union", "unsafe", "unsized", "use", "virtual", "where", "yield" );
+		
+		add( TS, "arguments", "as", "async", "await", "constructor", "debugger", "declare", "delete", "Error", "eval", "export", "from", "function", "get", "in", "is",
+		     "let", "module", "namespace", "null", "number", "readonly", "require", "set", "string", "symbol", "type", "typeof", "with", "yield" );
+	}
+}
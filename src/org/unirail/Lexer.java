@@ -0,0 +1,184 @@
+// AdHoc protocol - data interchange format and source code generator
+// Copyright 2019 Chikirev Sirguy, Unirail Group. All rights reserved.
+// info@unirail.org
+// https://github.com/cheblin/AdHoc-protocol
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package org.unirail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//One pass scan of a Java source head: the imports and the project declaration position.
+//Comments, string, text block and char literals are skipped, an import or a declaration inside them does not count.
+//The scan stops at the project declaration, the rest of the source is not read.
+final class Lexer {
+	
+	final List<String> imports     = new ArrayList<>();//imported names without whitespace: org.unirail.AdHoc.*, org.some.Pack, static members with the class name
+	int                declaration = -1;//project declaration position: the `public` or `private` modifier of the first top level interface. -1 - not found
+	
+	private final String src;
+	private       int    pos   = 0;
+	private       int    start = 0;//current token start
+	
+	private static final int
+			EOF     = -1,
+			LITERAL = -2,
+			IDENT   = -3;
+	
+	Lexer( String src ) {
+		this.src = src;
+		
+		int depth    = 0;//braces
+		int modifier = -1;//position of the public or private token just before, at the top level
+		
+		for (int token; (token = token()) != EOF; )
+			if (depth == 0 && token == IDENT)
+			{
+				if (-1 < modifier && word( "interface" ))
+				{
+					declaration = modifier;
+					return;
+				}
+				
+				if (word( "import" ))
+				{
+					imported();
+					modifier = -1;
+				}
+				else modifier = word( "public" ) || word( "private" ) ? start : -1;
+			}
+			else
+			{
+				if (token == '{') depth++;
+				else if (token == '}') depth--;
+				modifier = -1;
+			}
+	}
+	
+	//the source part above the project declaration: the package, imports and comments
+	String header() { return src.substring( 0, declaration ); }
+	
+	//name till the `;`
+	private void imported() {
+		final StringBuilder name = new StringBuilder();
+		for (int token; (token = token()) != EOF && token != ';'; )
+			if (token == IDENT)
+			{
+				if (name.length() == 0 && word( "static" )) continue;
+				for (int i = start; i < pos; i++)
+					if (!Character.isIdentifierIgnorable( src.charAt( i ) )) name.append( src.charAt( i ) );
+			}
+			else if (0 < token) name.append( (char) token );//. or *
+		
+		imports.add( name.toString() );
+	}
+	
+	//the current identifier is the word, identifier-ignorable chars aside
+	private boolean word( String word ) {
+		int i = start;
+		for (int w = 0; w < word.length(); i++)
+		{
+			if (i == pos) return false;
+			final char ch = src.charAt( i );
+			if (!Character.isIdentifierIgnorable( ch ) && ch != word.charAt( w++ )) return false;
+		}
+		while (i < pos && Character.isIdentifierIgnorable( src.charAt( i ) )) i++;
+		return i == pos;
+	}
+	
+	//next token: IDENT, LITERAL, EOF or a punctuation char. Whitespace and comments are skipped
+	private int token() {
+		final int len = src.length();
+		while (pos < len)
+		{
+			final char ch = src.charAt( pos );
+			if (Character.isWhitespace( ch ) || Character.isIdentifierIgnorable( ch ))
+			{
+				pos++;
+				continue;
+			}
+			
+			start = pos;
+			
+			if (ch == '/' && pos + 1 < len)
+			{
+				final char next = src.charAt( pos + 1 );
+				if (next == '/')//line comment
+				{
+					final int end = src.indexOf( '\n', pos + 2 );
+					pos = end == -1 ? len : end + 1;
+					continue;
+				}
+				if (next == '*')//block comment
+				{
+					final int end = src.indexOf( "*/", pos + 2 );
+					pos = end == -1 ? len : end + 2;
+					continue;
+				}
+			}
+			
+			if (ch == '"' || ch == '\'')
+			{
+				literal( ch );
+				return LITERAL;
+			}
+			
+			if (Character.isJavaIdentifierStart( ch ))
+			{
+				while (++pos < len && Character.isJavaIdentifierPart( src.charAt( pos ) )) ;
+				return IDENT;
+			}
+			
+			pos++;
+			return ch;
+		}
+		return EOF;
+	}
+	
+	//skips the string, text block or char literal
+	private void literal( char quote ) {
+		final int     len        = src.length();
+		final boolean text_block = quote == '"' && src.startsWith( "\"\"\"", pos );
+		
+		for (pos += text_block ? 3 : 1; pos < len; pos++)
+		{
+			final char ch = src.charAt( pos );
+			if (ch == '\\') pos++;//escaped char
+			else if (text_block)
+			{
+				if (src.startsWith( "\"\"\"", pos ))
+				{
+					pos += 3;
+					return;
+				}
+			}
+			else if (ch == quote || ch == '\n')//the end or not terminated literal
+			{
+				pos++;
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,211 @@
+// AdHoc protocol - data interchange format and source code generator
+// Copyright 2019 Chikirev Sirguy, Unirail Group. All rights reserved.
+// info@unirail.org
+// https://github.com/cheblin/AdHoc-protocol
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package org.unirail;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+//Timing of the agent cycle phases: compile, validate, merge, pack, connect, upload, wait, download, extract, deploy.
+//Every phase is a JFR event, if the JVM has JFR, and a record of the JSON report. The agent has new Phases every cycle.
+//   final Phases.Phase phase = phases.begin( "compile" );
+//   try { ... } finally { phase.close(); }
+final class Phases {
+	
+	final Path report;//the JSON report file, null - the phases are not kept, JFR events only
+	
+	private final long        start  = System.nanoTime();
+	private final List<Phase> phases = new ArrayList<>();//closed
+	private final List<Phase> open   = new ArrayList<>();//begun and not closed yet, the report of a failed run has them with the time so far
+	
+	Phases( Path report ) { this.report = report; }
+	
+	private static final boolean jfr = jfr();
+	
+	private static boolean jfr() {
+		try
+		{
+			Class.forName( "jdk.jfr.Event" );
+			return true;
+		} catch (ClassNotFoundException e) { return false; }
+	}
+	
+	Phase begin( String name ) { return new Phase( name ); }
+	
+	final class Phase implements Closeable {
+		final String name;
+		final long   begin = System.nanoTime();
+		long nanos = -1;
+		long bytes = 0;//transferred or processed
+		private final Object event;
+		
+		Phase( String name ) {
+			this.name = name;
+			event     = jfr ? JfrPhase.begin( name ) : null;
+			if (report != null) synchronized (phases) { open.add( this ); }
+		}
+		
+		//counts the bytes written through
+		OutputStream counting( OutputStream dst ) {
+			return new FilterOutputStream( dst ) {
+				@Override
+				public void write( int b ) throws IOException {
+					out.write( b );
+					bytes++;
+				}
+				
+				@Override
+				public void write( byte[] b, int off, int len ) throws IOException {
+					out.write( b, off, len );
+					bytes += len;
+				}
+			};
+		}
+		
+		//counts the bytes read through
+		InputStream counting( InputStream src ) {
+			return new FilterInputStream( src ) {
+				@Override
+				public int read() throws IOException {
+					final int b = in.read();
+					if (-1 < b) bytes++;
+					return b;
+				}
+				
+				@Override
+				public int read( byte[] b, int off, int len ) throws IOException {
+					final int n = in.read( b, off, len );
+					if (0 < n) bytes += n;
+					return n;
+				}
+			};
+		}
+		
+		@Override
+		public void close() {
+			if (-1 < nanos) return;
+			nanos = System.nanoTime() - begin;
+			if (event != null) JfrPhase.commit( event, bytes );
+			synchronized (phases)
+			{
+				if (open.remove( this )) phases.add( this );//kept only with the report
+			}
+		}
+	}
+	
+	//the phases so far, as JSON: {"project": ..., "exit": ..., "phases": [{"name": ..., "start_ms": ..., "ms": ..., "bytes": ..., "bytes_per_second": ..., "open": true}, ...]}
+	//An open phase, the one the run has failed in, has the time till now
+	String json( String project, int exit ) {
+		final StringBuilder json = new StringBuilder( "{\"project\": " );
+		string( project, json ).append( ", \"exit\": " ).append( exit ).append( ", \"phases\": [" );
+		synchronized (phases)
+		{
+			final List<Phase> all = new ArrayList<>( phases );
+			all.addAll( open );
+			final long now = System.nanoTime();
+			for (int i = 0; i < all.size(); i++)
+			{
+				final Phase   phase = all.get( i );
+				final boolean ended = -1 < phase.nanos;
+				final long    nanos = ended ? phase.nanos : now - phase.begin;
+				if (0 < i) json.append( ',' );
+				json.append( "\n  {\"name\": " );
+				string( phase.name, json )
+						.append( ", \"start_ms\": " ).append( (phase.begin - start) / 1_000_000.0 )
+						.append( ", \"ms\": " ).append( nanos / 1_000_000.0 )
+						.append( ", \"bytes\": " ).append( phase.bytes );
+				if (0 < phase.bytes && 0 < nanos) json.append( ", \"bytes_per_second\": " ).append( (long) (phase.bytes * 1e9 / nanos) );
+				if (!ended) json.append( ", \"open\": true" );
+				json.append( '}' );
+			}
+		}
+		return json.append( "\n]}\n" ).toString();
+	}
+	
+	private static StringBuilder string( String str, StringBuilder dst ) {
+		dst.append( '"' );
+		for (int i = 0; i < str.length(); i++)
+		{
+			final char ch = str.charAt( i );
+			if (ch == '"' || ch == '\\') dst.append( '\\' ).append( ch );
+			else if (ch < ' ') dst.append( String.format( "\\u%04x", (int) ch ) );
+			else dst.append( ch );
+		}
+		return dst.append( '"' );
+	}
+	
+	void report( String project, int exit ) {
+		final Path path = report;
+		if (path != null) try
+		{
+			final Path tmp = Files.createTempFile( path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp" );
+			Files.write( tmp, json( project, exit ).getBytes( StandardCharsets.UTF_8 ) );
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} catch (IOException e) { e.printStackTrace(); }
+	}
+	
+	//loaded only if the JVM has JFR
+	private static final class JfrPhase {
+		
+		@Name( "org.unirail.AdHocAgent.Phase" )
+		@Label( "AdHocAgent Phase" )
+		@Category( "AdHocAgent" )
+		@StackTrace( false )
+		static final class PhaseEvent extends jdk.jfr.Event {
+			@Label( "Phase" )
+			String name;
+			
+			@Label( "Bytes" )
+			@DataAmount
+			long bytes;
+		}
+		
+		static Object begin( String name ) {
+			final PhaseEvent event = new PhaseEvent();
+			event.name = name;
+			event.begin();
+			return event;
+		}
+		
+		static void commit( Object event, long bytes ) {
+			final PhaseEvent e = (PhaseEvent) event;
+			e.bytes = bytes;
+			e.commit();
+		}
+	}
+}
@@ -0,0 +1,211 @@
+// AdHoc protocol - data interchange format and source code generator
+// Copyright 2019 Chikirev Sirguy, Unirail Group. All rights reserved.
+// info@unirail.org
+// https://github.com/cheblin/AdHoc-protocol
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package org.unirail;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Many requests over one TCP connection. The connection starts with 3 zero bytes (empty V1 frame) and the Framing_Session version,
+//then both sides send chunks:
+//   varint request id, varint length, bytes
+//The zero length chunk ends the message of the id, a chunk is max_chunk bytes at most. Messages of different requests interleave, replies come in any order.
+//A request message is the same as HTTP request body: type, body. A reply message is type, body.
+final class Session implements Closeable {
+	
+	private final    Socket              socket;
+	private final    OutputStream        dst;
+	private final    InputStream         src;
+	private final    AtomicInteger       ids     = new AtomicInteger();
+	private final    Map<Integer, Reply> replies = new ConcurrentHashMap<>();
+	private volatile IOException         failure = null;
+	
+	private static final byte[] FAILED = new byte[0];//the connection is lost mark
+	
+	static final int max_chunk = 16 * 1024 * 1024;//the senders use 64 KB, a greater length is a broken stream
+	
+	Session( String host, int port ) throws IOException {
+		socket = new Socket( host, port );
+		try
+		{
+			dst = new BufferedOutputStream( socket.getOutputStream() );
+			src = new BufferedInputStream( socket.getInputStream() );
+			
+			dst.write( new byte[]{0, 0, 0, AdHocAgent.Protocol.Framing_Session} );
+			dst.flush();
+		} catch (IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+		
+		final Thread receiver = new Thread( this::receiving, "AdHocAgent session " + host + ":" + port );
+		receiver.setDaemon( true );
+		receiver.start();
+	}
+	
+	boolean alive() { return failure == null && !socket.isClosed(); }
+	
+	//new request: the message is written into the request stream, closing it sends the message end, then the reply can be read
+	Exchange exchange() throws IOException {
+		if (failure != null) throw failure;
+		final Exchange exchange = new Exchange( ids.incrementAndGet() );
+		if (failure != null)//the receiver has failed meanwhile, it may have missed the reply registered just now
+		{
+			replies.remove( exchange.id );
+			throw failure;
+		}
+		return exchange;
+	}
+	
+	final class Exchange {
+		final int          id;
+		final OutputStream request;
+		final InputStream  reply;
+		
+		Exchange( int id ) {
+			this.id = id;
+			final Reply reply = new Reply();
+			replies.put( id, reply );
+			this.reply = reply;
+			
+			request = new OutputStream() {
+				private final byte[] chunk = new byte[64 * 1024];
+				private       int    size  = 0;
+				
+				@Override
+				public void write( int b ) throws IOException {
+					if (size == chunk.length) flush();
+					chunk[size++] = (byte) b;
+				}
+				
+				@Override
+				public void write( byte[] b, int off, int len ) throws IOException {
+					for (int n; 0 < len; off += n, len -= n)
+					{
+						if (size == chunk.length) flush();
+						System.arraycopy( b, off, chunk, size, n = Math.min( len, chunk.length - size ) );
+						size += n;
+					}
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					if (size == 0) return;
+					send( id, chunk, size );
+					size = 0;
+				}
+				
+				@Override
+				public void close() throws IOException {
+					flush();
+					send( id, chunk, 0 );
+				}
+			};
+		}
+	}
+	
+	//chunks of the different requests do not mix
+	private synchronized void send( int id, byte[] bytes, int len ) throws IOException {
+		if (failure != null) throw failure;
+		final ByteArrayOutputStream header = new ByteArrayOutputStream( 10 );
+		Delta.write_varint( id, header );
+		Delta.write_varint( len, header );
+		header.writeTo( dst );
+		dst.write( bytes, 0, len );
+		dst.flush();
+	}
+	
+	private void receiving() {
+		final DataInputStream src = new DataInputStream( this.src );
+		try
+		{
+			for (; ; )
+			{
+				final int  id  = (int) Delta.read_varint( src );
+				final long len = Delta.read_varint( src );
+				if (len < 0 || max_chunk < len) throw new IOException( "Broken session stream, the chunk length is " + len );
+				
+				final byte[] chunk = new byte[(int) len];
+				src.readFully( chunk );
+				
+				final Reply reply = len == 0 ? replies.remove( id ) : replies.get( id );
+				if (reply != null) reply.chunks.add( chunk );//the zero length chunk is the reply end mark
+			}
+		} catch (Throwable e)//anything, the waiting replies are released
+		{
+			failure = e instanceof IOException ? (IOException) e : new IOException( "Session receiver failed", e );
+			for (Reply reply : replies.values()) reply.chunks.add( FAILED );
+			replies.clear();
+			try { socket.close(); } catch (IOException ignored) { }//the connection is not used anymore, release its descriptor
+		}
+	}
+	
+	//reply message bytes, as they come
+	private final class Reply extends InputStream {
+		final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+		byte[] chunk = null;
+		int    pos   = 0;
+		
+		private boolean next() throws IOException {
+			while (chunk == null || pos == chunk.length)
+			{
+				if (chunk != null && chunk.length == 0)//end of the reply
+				{
+					if (chunk == FAILED) throw failure;
+					return false;
+				}
+				try
+				{
+					chunk = chunks.take();
+				} catch (InterruptedException e) { throw new InterruptedIOException(); }
+				pos = 0;
+			}
+			return true;
+		}
+		
+		@Override
+		public int read() throws IOException { return next() ? chunk[pos++] & 0xFF : -1; }
+		
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException {
+			if (len == 0) return 0;
+			if (!next()) return -1;
+			len = Math.min( len, chunk.length - pos );
+			System.arraycopy( chunk, pos, b, off, len );
+			pos += len;
+			return len;
+		}
+	}
+	
+	@Override
+	public void close() throws IOException { socket.close(); }
+}
@@ -0,0 +1,594 @@
+// AdHoc protocol - data interchange format and source code generator
+// Copyright 2019 Chikirev Sirguy, Unirail Group. All rights reserved.
+// info@unirail.org
+// https://github.com/cheblin/AdHoc-protocol
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package org.unirail;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+
+//Loopback stand-in of the AdHoc server and the agent performance harness, to measure the agent offline.
+//It speaks the TCP (all framings and the Session) and HTTP variants of the AdHocAgent.Protocol, but "generates" a synthetic files tree.
+//
+//   java -cp AdHocAgent.jar org.unirail.StandIn [options]                           serve till killed
+//   java -cp AdHocAgent.jar org.unirail.StandIn [options] MyProject.java ...        serve and measure the agent full cycles
+//
+//options:
+//   --tcp            port        TCP port, 0 - any free. Default 0
+//   --http           port        HTTP port, 0 - any free. Default 0
+//   --delay          seconds     generation time, upload is replied with Timeout, the result is ready after it. Default 0
+//   --hosts          count       generated hosts. Default 4
+//   --files          count       generated files per host. Default 50
+//   --size           bytes       generated file size. Default 4096
+//   --agents         count       concurrent agents. Default 1
+//   --cycles         count       cycles of every agent. Default 3
+//   --props          file        agents properties, server and login are replaced. Default the description properties
+//   --over           tcp|http    the agents transport. Default tcp
+//   --framing        1|2|3       the agents tcp_framing. Default as in the properties
+//   --delta_upload   true|false  the agents delta_upload. Default as in the properties
+//   --delta_download true|false  the agents delta_download. Default as in the properties
+//   --long_poll      true|false  the agents long_poll. Default as in the properties
+//
+//Every framing with the delta download and the long poll is worth a run, they frame the requests differently:
+//   java -cp AdHocAgent.jar org.unirail.StandIn --framing 2 --delta_download true MyProject.java
+//   java -cp AdHocAgent.jar org.unirail.StandIn --framing 3 --delta_download true --long_poll true MyProject.java
+//
+//Every upload changes one of ten generated files, the rest stay the same, as on a typical description edit.
+class StandIn {
+	
+	private static final Map<String, String> options = new HashMap<>();
+	
+	private static int option( String name, int def ) { return options.containsKey( name ) ? Integer.parseInt( options.get( name ) ) : def; }
+	
+	public static void main( String[] args ) throws Exception {
+		final List<Path> descriptions = new ArrayList<>();
+		for (int i = 0; i < args.length; i++)
+			if (args[i].startsWith( "--" )) options.put( args[i].substring( 2 ), args[++i] );
+			else descriptions.add( Paths.get( args[i] ).toAbsolutePath() );
+		
+		delay = option( "delay", 0 );
+		hosts = option( "hosts", 4 );
+		files = option( "files", 50 );
+		size  = option( "size", 4096 );
+		
+		final ServerSocket tcp  = new ServerSocket( option( "tcp", 0 ) );
+		final HttpServer   http = HttpServer.create( new InetSocketAddress( option( "http", 0 ) ), 0 );
+		
+		http.createContext( "/", exchange -> {
+			try (InputStream src = new CountingInput( exchange.getRequestBody(), bytes_in ))
+			{
+				final ByteArrayOutputStream reply = new ByteArrayOutputStream();
+				serve( src, reply );
+				drain( src );
+				bytes_out.addAndGet( reply.size() );
+				exchange.sendResponseHeaders( 200, reply.size() );
+				try (OutputStream dst = exchange.getResponseBody()) { reply.writeTo( dst ); }
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+				exchange.sendResponseHeaders( 500, -1 );
+			}
+		} );
+		http.setExecutor( connections );
+		http.start();
+		
+		final Thread acceptor = new Thread( () -> {
+			try
+			{
+				for (; ; )
+				{
+					final Socket socket = tcp.accept();
+					connections.execute( () -> connection( socket ) );
+				}
+			} catch (IOException e) { }
+		}, "StandIn acceptor" );
+		acceptor.setDaemon( true );
+		acceptor.start();
+		
+		System.out.println( "StandIn is serving TCP on 127.0.0.1:" + tcp.getLocalPort() + " and HTTP on http://127.0.0.1:" + http.getAddress().getPort() + "/" );
+		
+		if (descriptions.isEmpty())
+		{
+			Thread.currentThread().join();
+			return;
+		}
+		
+		final String server = options.getOrDefault( "over", "tcp" ).equals( "http" ) ?
+		                      "http://127.0.0.1:" + http.getAddress().getPort() + "/" :
+		                      "127.0.0.1:" + tcp.getLocalPort();
+		bench( descriptions, server );
+		
+		http.stop( 0 );
+		tcp.close();
+	}
+	
+	// =========================     server
+	
+	private static int delay;
+	private static int hosts;
+	private static int files;
+	private static int size;
+	
+	private static final AtomicLong requests  = new AtomicLong();
+	private static final AtomicLong bytes_in  = new AtomicLong();
+	private static final AtomicLong bytes_out = new AtomicLong();
+	
+	private static final class Job {
+		final String project;
+		final byte[] content;
+		final long   ready;//time the result is "generated"
+		
+		Job( String project, byte[] content ) {
+			this.project = project;
+			this.content = content;
+			ready        = System.currentTimeMillis() + delay * 1000L;
+		}
+	}
+	
+	private static final Map<String, Job> jobs = new ConcurrentHashMap<>();//by project
+	
+	private static final ExecutorService connections = Executors.newCachedThreadPool( r -> {
+		final Thread thread = new Thread( r, "StandIn connection" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+	
+	private static void connection( Socket socket ) {
+		try (Socket s = socket)
+		{
+			final InputStream  src = new BufferedInputStream( new CountingInput( s.getInputStream(), bytes_in ) );
+			final OutputStream dst = new BufferedOutputStream( new Counting( s.getOutputStream(), bytes_out ) );
+			
+			Map<String, byte[]> manifest = null;
+			for (; ; )
+			{
+				final int len = read_len( src );
+				if (0 < len)//V1
+				{
+					final int    type = src.read();
+					final byte[] body = new byte[len];
+					new DataInputStream( src ).readFully( body );
+					if (type == AdHocAgent.Protocol.Manifest)
+					{
+						manifest = manifest( new ByteArrayInputStream( body ) );
+						continue;
+					}
+					serve( type, new ByteArrayInputStream( body ), manifest, dst );
+				}
+				else
+				{
+					final int version = src.read();
+					if (version == AdHocAgent.Protocol.Framing_Session)
+					{
+						session( src, dst );
+						return;
+					}
+					
+					final int         type = src.read();
+					final InputStream body = new Chunks( src );
+					if (type == AdHocAgent.Protocol.Manifest)
+					{
+						manifest = manifest( body );
+						drain( body );//the zero length chunk, the next request starts after it
+						continue;
+					}
+					serve( type, body, manifest, dst );
+				}
+				dst.flush();
+				return;//one request per connection
+			}
+		} catch (IOException e) { }//the agent has gone
+		catch (Exception e) { e.printStackTrace(); }
+	}
+	
+	//Session connection: messages of the requests come in chunks tagged by the request id, served concurrently
+	private static void session( InputStream src, OutputStream dst ) throws Exception {
+		final Map<Integer, PipedOutputStream> messages = new HashMap<>();
+		for (; ; )
+		{
+			final int    id    = (int) Delta.read_varint( src );
+			final int    len   = (int) Delta.read_varint( src );
+			final byte[] chunk = new byte[len];
+			new DataInputStream( src ).readFully( chunk );
+			
+			PipedOutputStream message = messages.get( id );
+			if (message == null)
+			{
+				final PipedInputStream request = new PipedInputStream( 64 * 1024 );
+				messages.put( id, message = new PipedOutputStream( request ) );
+				
+				connections.execute( () -> {
+					try
+					{
+						final ByteArrayOutputStream reply = new ByteArrayOutputStream();
+						serve( request, reply );
+						drain( request );
+						
+						synchronized (dst)
+						{
+							final byte[] bytes = reply.toByteArray();
+							for (int pos = 0, n; pos < bytes.length; pos += n)
+							{
+								n = Math.min( 64 * 1024, bytes.length - pos );
+								write_chunk( id, bytes, pos, n, dst );
+							}
+							write_chunk( id, bytes, 0, 0, dst );
+							dst.flush();
+						}
+					} catch (Exception e) { e.printStackTrace(); }
+				} );
+			}
+			
+			if (len == 0)
+			{
+				message.close();
+				messages.remove( id );
+			}
+			else message.write( chunk );
+		}
+	}
+	
+	private static void write_chunk( int id, byte[] bytes, int pos, int len, OutputStream dst ) throws IOException {
+		final ByteArrayOutputStream header = new ByteArrayOutputStream( 10 );
+		Delta.write_varint( id, header );
+		Delta.write_varint( len, header );
+		header.writeTo( dst );
+		dst.write( bytes, pos, len );
+	}
+	
+	//HTTP and Session request: optional Manifest, type, body
+	private static void serve( InputStream src, OutputStream dst ) throws Exception {
+		Map<String, byte[]> manifest = null;
+		int                 type     = src.read();
+		if (type == AdHocAgent.Protocol.Manifest)
+		{
+			manifest = manifest( src );
+			type     = src.read();
+		}
+		serve( type, src, manifest, dst );
+	}
+	
+	private static void serve( int type, InputStream body, Map<String, byte[]> manifest, OutputStream dst ) throws Exception {
+		requests.incrementAndGet();
+		switch (type)
+		{
+			case AdHocAgent.Protocol.File:
+			case AdHocAgent.Protocol.Delta:
+			{
+				final JarInputStream jar   = new JarInputStream( body );
+				final JarEntry       entry = jar.getNextJarEntry();
+				final byte[]         bytes = read_all( jar );
+				
+				final String[] name    = entry.getName().split( "@", 2 );//content length@project[@]
+				final String   project = name[1].endsWith( "@" ) ? name[1].substring( 0, name[1].length() - 1 ) : name[1];
+				
+				byte[] content = bytes;
+				if (type == AdHocAgent.Protocol.Delta)
+				{
+					final InputStream src  = new ByteArrayInputStream( bytes );
+					final byte[]      base = new byte[(int) Delta.read_varint( src )];
+					new DataInputStream( src ).readFully( base );
+					
+					final Job was = jobs.get( new String( base, StandardCharsets.UTF_8 ) );
+					if (was == null)//unknown base, full upload is needed
+					{
+						dst.write( AdHocAgent.Protocol.Timeout );
+						dst.write( 0 );
+						return;
+					}
+					content = Delta.decode( was.content, src );
+				}
+				if (content.length != Integer.parseInt( name[0] )) throw new IOException( "Broken upload of " + project );
+				
+				final Job job = new Job( project, content );
+				jobs.put( project, job );
+				if (0 < delay)
+				{
+					dst.write( AdHocAgent.Protocol.Timeout );
+					dst.write( Math.min( 255, delay ) );
+				}
+				else result( job, manifest, dst );
+				return;
+			}
+			case AdHocAgent.Protocol.Request:
+			case AdHocAgent.Protocol.Subscribe:
+			{
+				final Job job = jobs.get( new String( read_all( body ), StandardCharsets.UTF_8 ) );
+				if (job == null)//re-upload
+				{
+					dst.write( AdHocAgent.Protocol.Timeout );
+					dst.write( 0 );
+					return;
+				}
+				
+				for (long left; 0 < (left = job.ready - System.currentTimeMillis()); )
+				{
+					if (type == AdHocAgent.Protocol.Request)
+					{
+						dst.write( AdHocAgent.Protocol.Timeout );
+						dst.write( (int) Math.min( 255, (left + 999) / 1000 ) );
+						return;
+					}
+					
+					final ByteArrayOutputStream progress = new ByteArrayOutputStream();
+					progress.write( AdHocAgent.Protocol.Progress );
+					progress.write( (int) (100 - left * 100 / Math.max( 1, delay * 1000L )) );
+					Delta.write_varint( (left + 999) / 1000, progress );
+					progress.writeTo( dst );
+					dst.flush();
+					Thread.sleep( Math.min( left, 1000 ) );
+				}
+				result( job, manifest, dst );
+				return;
+			}
+			default:
+				throw new IOException( "Unknown request type " + type );
+		}
+	}
+	
+	//the generated files tree. Full File, or Patch against the manifest
+	private static void result( Job job, Map<String, byte[]> manifest, OutputStream dst ) throws Exception {
+		final Map<String, byte[]> tree = new TreeMap<>();
+		final String              name = job.project.substring( job.project.lastIndexOf( '@' ) + 1 );
+		
+		final String description = new String( job.content, StandardCharsets.UTF_8 );
+		final int    constants   = description.indexOf( "//@#$%^&*" );
+		tree.put( name, (constants < 0 ? description : description.substring( 0, constants )).getBytes( StandardCharsets.UTF_8 ) );
+		
+		final int changed = Arrays.hashCode( job.content );
+		for (int h = 0; h < hosts; h++)
+			for (int f = 0; f < files; f++)
+				tree.put( "InC/HOST" + h + "/file" + f + ".c", file( h, f, f % 10 == Math.floorMod( changed, 10 ) ? changed : 0 ) );
+		
+		final MessageDigest   md  = MessageDigest.getInstance( "SHA-256" );
+		final JarOutputStream jar = new JarOutputStream( dst );
+		if (manifest == null)
+		{
+			dst.write( AdHocAgent.Protocol.File );
+			jar.putNextEntry( new JarEntry( "InC/" ) );
+			for (int h = 0; h < hosts; h++) jar.putNextEntry( new JarEntry( "InC/HOST" + h + "/" ) );
+		}
+		else dst.write( AdHocAgent.Protocol.Patch );
+		
+		for (Map.Entry<String, byte[]> file : tree.entrySet())
+		{
+			if (manifest != null && Arrays.equals( manifest.get( file.getKey() ), md.digest( file.getValue() ) )) continue;
+			jar.putNextEntry( new JarEntry( file.getKey() ) );
+			jar.write( file.getValue() );
+		}
+		
+		if (manifest != null)
+		{
+			final StringBuilder deleted = new StringBuilder();
+			for (String path : manifest.keySet())
+				if (!tree.containsKey( path )) deleted.append( path ).append( '\n' );
+			jar.putNextEntry( new JarEntry( "unirail.deleted" ) );
+			jar.write( deleted.toString().getBytes( StandardCharsets.UTF_8 ) );
+		}
+		jar.finish();
+	}
+	
+	private static byte[] file( int host, int file, int seed ) {
+		final byte[] bytes = new byte[size];
+		final Random random = new Random( host * 31L + file * 1_000_003L + seed );
+		for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) ('a' + random.nextInt( 26 ));
+		for (int i = 80; i < bytes.length; i += 81) bytes[i] = '\n';
+		return bytes;
+	}
+	
+	private static Map<String, byte[]> manifest( InputStream src ) throws IOException {
+		final Map<String, byte[]> files = new HashMap<>();
+		final DataInputStream     data  = new DataInputStream( src );
+		for (long i = Delta.read_varint( src ); 0 < i; i--)
+		{
+			final byte[] name = new byte[(int) Delta.read_varint( src )];
+			data.readFully( name );
+			final byte[] hash = new byte[32];
+			data.readFully( hash );
+			files.put( new String( name, StandardCharsets.UTF_8 ), hash );
+		}
+		return files;
+	}
+	
+	private static int read_len( InputStream src ) throws IOException {
+		final int a = src.read(), b = src.read(), c = src.read();
+		if ((a | b | c) < 0) throw new EOFException();
+		return a << 16 | b << 8 | c;
+	}
+	
+	private static byte[] read_all( InputStream src ) throws IOException {
+		final ByteArrayOutputStream dst = new ByteArrayOutputStream();
+		final byte[]                buf = new byte[64 * 1024];
+		for (int len; -1 < (len = src.read( buf )); ) dst.write( buf, 0, len );
+		return dst.toByteArray();
+	}
+	
+	private static void drain( InputStream src ) throws IOException {
+		for (byte[] buf = new byte[1024]; -1 < src.read( buf ); ) ;
+	}
+	
+	//V2 body: varint length chunks till the zero one
+	private static final class Chunks extends InputStream {
+		private final InputStream src;
+		private       long        left = 0;
+		private       boolean     end  = false;
+		
+		Chunks( InputStream src ) { this.src = src; }
+		
+		private boolean next() throws IOException {
+			while (left == 0 && !end)
+				if ((left = Delta.read_varint( src )) == 0) end = true;
+			return !end;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (!next()) return -1;
+			left--;
+			return src.read();
+		}
+		
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException {
+			if (len == 0) return 0;
+			if (!next()) return -1;
+			final int n = src.read( b, off, (int) Math.min( len, left ) );
+			if (n < 0) throw new EOFException();
+			left -= n;
+			return n;
+		}
+	}
+	
+	private static final class Counting extends FilterOutputStream {
+		private final AtomicLong count;
+		
+		Counting( OutputStream dst, AtomicLong count ) {
+			super( dst );
+			this.count = count;
+		}
+		
+		@Override
+		public void write( int b ) throws IOException {
+			out.write( b );
+			count.incrementAndGet();
+		}
+		
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException {
+			out.write( b, off, len );
+			count.addAndGet( len );
+		}
+	}
+	
+	private static final class CountingInput extends FilterInputStream {
+		private final AtomicLong count;
+		
+		CountingInput( InputStream src, AtomicLong count ) {
+			super( src );
+			this.count = count;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			final int b = in.read();
+			if (-1 < b) count.incrementAndGet();
+			return b;
+		}
+		
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException {
+			final int n = in.read( b, off, len );
+			if (0 < n) count.addAndGet( n );
+			return n;
+		}
+	}
+	
+	// =========================     harness
+	
+	//runs the agents processes, every agent repeats the full cycle: compile, pack, upload, wait, extract, deploy
+	private static void bench( List<Path> descriptions, String server ) throws Exception {
+		final int agents = option( "agents", 1 );
+		final int cycles = option( "cycles", 3 );
+		
+		final Path            root    = Files.createTempDirectory( "StandIn" );
+		final List<Long>      times   = Collections.synchronizedList( new ArrayList<>() );
+		final AtomicLong      failed  = new AtomicLong();
+		final ExecutorService runners = Executors.newFixedThreadPool( agents );
+		final List<Future<?>> done    = new ArrayList<>();
+		final long            start   = System.nanoTime();
+		
+		for (int a = 0; a < agents; a++)
+		{
+			final int  agent       = a;
+			final Path description = descriptions.get( a % descriptions.size() );
+			final Path work        = Files.createDirectories( root.resolve( "agent" + a ) );
+			final Path file        = Files.createDirectories( work.resolve( "description" ) ).resolve( description.getFileName() );//not in the working folder, that gets the generated description
+			
+			final Properties props      = new Properties();
+			final Path       props_path = options.containsKey( "props" ) ? Paths.get( options.get( "props" ) ) : description.resolveSibling( description.getFileName().toString().replaceFirst( "java$", "properties" ) );
+			if (Files.exists( props_path )) try (Reader src = Files.newBufferedReader( props_path )) { props.load( src ); }
+			props.setProperty( "server", server );
+			props.setProperty( "login", "agent" + a );
+			if (options.containsKey( "framing" )) props.setProperty( "tcp_framing", options.get( "framing" ) );
+			for (String key : new String[]{"delta_upload", "delta_download", "long_poll"})
+				if (options.containsKey( key )) props.setProperty( key, options.get( key ) );
+			try (Writer dst = Files.newBufferedWriter( file.resolveSibling( file.getFileName().toString().replaceFirst( "java$", "properties" ) ) )) { props.store( dst, "StandIn agent " + a ); }
+			
+			done.add( runners.submit( () -> {
+				for (int c = 0; c < cycles; c++)
+				{
+					file.toFile().setWritable( true );
+					Files.write( file, (new String( Files.readAllBytes( description ), StandardCharsets.UTF_8 ) + "\n//cycle " + c + "\n").getBytes( StandardCharsets.UTF_8 ) );
+					file.toFile().setLastModified( System.currentTimeMillis() - 1000 );
+					
+					final Process process = new ProcessBuilder( Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString(), "-cp", System.getProperty( "java.class.path" ), AdHocAgent.class.getName(), file.toString() )
+							                        .directory( work.toFile() )
+							                        .redirectErrorStream( true )
+							                        .redirectOutput( ProcessBuilder.Redirect.appendTo( work.resolve( "agent.log" ).toFile() ) )
+							                        .start();
+					final long time = System.nanoTime();
+					process.getOutputStream().close();//Press ENTER to exit
+					if (process.waitFor() == 0) times.add( System.nanoTime() - time );
+					else
+					{
+						failed.incrementAndGet();
+						System.out.println( "Agent " + agent + " cycle " + c + " failed, see " + work.resolve( "agent.log" ) );
+					}
+				}
+				return null;
+			} ) );
+		}
+		for (Future<?> f : done) f.get();
+		runners.shutdown();
+		
+		final long total = System.nanoTime() - start;
+		
+		Collections.sort( times );
+		System.out.println( "agents " + agents + ", cycles " + cycles + ", failed " + failed + ", requests " + requests + ", bytes in " + bytes_in + ", out " + bytes_out );
+		if (!times.isEmpty())
+			System.out.printf( "cycle ms: min %.1f, median %.1f, p90 %.1f, max %.1f. Total %.1f ms, %.2f cycles/s%n",
+			                   times.get( 0 ) / 1e6,
+			                   times.get( times.size() / 2 ) / 1e6,
+			                   times.get( Math.min( times.size() - 1, times.size() * 9 / 10 ) ) / 1e6,
+			                   times.get( times.size() - 1 ) / 1e6,
+			                   total / 1e6,
+			                   times.size() / (total / 1e9) );
+		System.out.println( "Agents working folders are in " + root );
+	}
+}
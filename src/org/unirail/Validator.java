@@ -0,0 +1,278 @@
+// AdHoc protocol - data interchange format and source code generator
+// Copyright 2019 Chikirev Sirguy, Unirail Group. All rights reserved.
+// info@unirail.org
+// https://github.com/cheblin/AdHoc-protocol
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package org.unirail;
+
+import com.sun.source.tree.*;
+import com.sun.source.util.*;
+
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.tools.JavaCompiler;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Array;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Validation data from the typed AST. After the attribution of every compiled class, the javac listener describes the class and its fields
+//as the ClassFile with the source positions, so the validation needs neither the class bytes nor the class loading.
+//Loaded only by reflection and only if javac has the com.sun.source API, see Compiler.validation: on JDK 8 the API is in tools.jar, not in the class path
+final class Validator implements TaskListener {
+	
+	final Map<String, ClassFile> classes  = new ConcurrentHashMap<>();//binary name > class
+	boolean                      complete = true;//every static final value is known from the source, the class bytes are not needed
+	
+	private final JavacTask task;
+	private final Trees     trees;
+	private final Elements  elements;
+	
+	private Validator( JavacTask task ) {
+		this.task = task;
+		trees     = Trees.instance( task );
+		elements  = task.getElements();
+		task.addTaskListener( this );
+	}
+	
+	//analyze only, the class bytes are generated if they are needed for the cache or the values are not known from the source.
+	//The validation data: binary name > class, null - not javac
+	static Map<String, ClassFile> call( JavaCompiler.CompilationTask task, boolean generate ) throws IOException {
+		if (!(task instanceof JavacTask)) return null;
+		
+		final Validator validator = new Validator( (JavacTask) task );
+		validator.task.analyze();
+		if (generate || !validator.complete) validator.task.generate();
+		return validator.classes;
+	}
+	
+	@Override public void started( TaskEvent e ) { }
+	
+	@Override
+	public void finished( TaskEvent e ) {
+		if (e.getKind() != TaskEvent.Kind.ANALYZE || e.getTypeElement() == null) return;
+		
+		final CompilationUnitTree unit = e.getCompilationUnit();
+		new TreePathScanner<Void, Void>() {
+			@Override
+			public Void visitClass( ClassTree tree, Void v ) {
+				final Element type = trees.getElement( getCurrentPath() );
+				if (type instanceof TypeElement) declared( unit, getCurrentPath(), (TypeElement) type );
+				return super.visitClass( tree, v );
+			}
+		}.scan( trees.getPath( e.getTypeElement() ), null );
+	}
+	
+	private void declared( CompilationUnitTree unit, TreePath class_path, TypeElement type ) {
+		final int access = type.getKind().isInterface() ? ClassFile.ACC_INTERFACE :
+		                   type.getKind() == ElementKind.ENUM ? ClassFile.ACC_ENUM : 0;
+		
+		final List<? extends TypeMirror> implemented = type.getInterfaces();
+		final String[]                   interfaces  = new String[implemented.size()];
+		for (int i = 0; i < interfaces.length; i++) interfaces[i] = internal( implemented.get( i ) );
+		
+		final ClassFile cf = new ClassFile( access, internal( type ), type.getSimpleName().toString(),
+		                                    type.getSuperclass().getKind() == TypeKind.DECLARED ? internal( type.getSuperclass() ) : null, interfaces );
+		cf.at = at( unit, class_path.getLeaf() );
+		
+		for (AnnotationMirror ann : type.getAnnotationMirrors())//as reflection sees them
+		{
+			final Retention retention = ann.getAnnotationType().asElement().getAnnotation( Retention.class );
+			if (retention == null || retention.value() != RetentionPolicy.RUNTIME) continue;
+			cf.annotation = internal( ann.getAnnotationType() );
+			break;
+		}
+		
+		for (Tree member : ((ClassTree) class_path.getLeaf()).getMembers())
+		{
+			if (member.getKind() != Tree.Kind.VARIABLE) continue;
+			
+			final TreePath path    = new TreePath( class_path, member );
+			final Element  element = trees.getElement( path );
+			if (!(element instanceof VariableElement)) continue;
+			
+			final VariableElement var  = (VariableElement) element;
+			final Set<Modifier>   mods = var.getModifiers();
+			final TypeMirror      T    = var.asType();
+			final ClassFile.Field fld  = new ClassFile.Field( (mods.contains( Modifier.PUBLIC ) ? ClassFile.ACC_PUBLIC : 0) | (mods.contains( Modifier.STATIC ) ? ClassFile.ACC_STATIC : 0) | (mods.contains( Modifier.FINAL ) ? ClassFile.ACC_FINAL : 0),
+			                                                  var.getSimpleName().toString(), descriptor( T ) );
+			fld.at = at( unit, member );
+			cf.fields.add( fld );
+			
+			if (T.getKind() == TypeKind.DECLARED && ((DeclaredType) T).asElement().getEnclosingElement() instanceof TypeElement) cf.member_classes.add( internal( T ) );
+			
+			if (!fld.is( ClassFile.ACC_STATIC | ClassFile.ACC_FINAL )) continue;
+			
+			final Object value = var.getConstantValue();
+			if (value != null) fld.value( ClassFile.typed( value, fld.descriptor ) );
+			else if (T.getKind() == TypeKind.ARRAY && ((VariableTree) member).getInitializer() != null)
+			{
+				final Object array = array( new TreePath( path, ((VariableTree) member).getInitializer() ), ((ArrayType) T).getComponentType() );
+				if (array != null) fld.value( array );
+			}
+			
+			if (!fld.known && (fld.descriptor.equals( "Ljava/lang/String;" ) || fld.descriptor.length() == 1 || fld.descriptor.charAt( 0 ) == '['))
+				complete = false;//the validation takes the value from the loaded class
+		}
+		
+		classes.put( elements.getBinaryName( type ).toString(), cf );
+	}
+	
+	//{1, 2, C} or new String[]{"a", null}, of the literals and the constants. null - not such an array
+	private Object array( TreePath path, TypeMirror component ) {
+		final Tree init = path.getLeaf();
+		if (!(init instanceof NewArrayTree) || ((NewArrayTree) init).getInitializers() == null) return null;
+		
+		final Class<?> type = component_class( component );
+		if (type == null) return null;
+		
+		final List<? extends ExpressionTree> items = ((NewArrayTree) init).getInitializers();
+		final Object                         array = Array.newInstance( type, items.size() );
+		for (int i = 0; i < items.size(); i++)
+		{
+			final Object value = constant( new TreePath( path, items.get( i ) ) );
+			if (value == UNKNOWN) return null;
+			Array.set( array, i, value == null ? null : converted( value, type ) );
+		}
+		return array;
+	}
+	
+	private static final Object UNKNOWN = new Object();
+	
+	private Object constant( TreePath path ) {
+		final Tree item = path.getLeaf();
+		switch (item.getKind())
+		{
+			case NULL_LITERAL:
+				return null;
+			case PARENTHESIZED:
+				return constant( new TreePath( path, ((ParenthesizedTree) item).getExpression() ) );
+			case UNARY_MINUS:
+			{
+				final Object value = constant( new TreePath( path, ((UnaryTree) item).getExpression() ) );
+				if (value instanceof Integer) return -(Integer) value;
+				if (value instanceof Long) return -(Long) value;
+				if (value instanceof Float) return -(Float) value;
+				if (value instanceof Double) return -(Double) value;
+				return UNKNOWN;
+			}
+		}
+		if (item instanceof LiteralTree) return ((LiteralTree) item).getValue();
+		
+		final Element element = trees.getElement( path );//a constant field
+		if (element instanceof VariableElement)
+		{
+			final Object value = ((VariableElement) element).getConstantValue();
+			if (value != null) return value;
+		}
+		return UNKNOWN;
+	}
+	
+	private static Class<?> component_class( TypeMirror T ) {
+		switch (T.getKind())
+		{
+			case BOOLEAN:
+				return boolean.class;
+			case BYTE:
+				return byte.class;
+			case SHORT:
+				return short.class;
+			case CHAR:
+				return char.class;
+			case INT:
+				return int.class;
+			case LONG:
+				return long.class;
+			case FLOAT:
+				return float.class;
+			case DOUBLE:
+				return double.class;
+			case DECLARED:
+				return T.toString().equals( "java.lang.String" ) ? String.class : null;
+		}
+		return null;
+	}
+	
+	//the literal value widened or narrowed to the array component type, as javac does
+	private static Object converted( Object value, Class<?> type ) {
+		if (type == String.class || type == boolean.class) return value;
+		final Number number = value instanceof Character ? (Number) (int) (Character) value : (Number) value;
+		if (type == byte.class) return number.byteValue();
+		if (type == short.class) return number.shortValue();
+		if (type == char.class) return (char) number.intValue();
+		if (type == int.class) return number.intValue();
+		if (type == long.class) return number.longValue();
+		if (type == float.class) return number.floatValue();
+		return number.doubleValue();
+	}
+	
+	private String internal( TypeMirror T ) { return internal( (TypeElement) ((DeclaredType) T).asElement() ); }
+	
+	private String internal( TypeElement type ) { return elements.getBinaryName( type ).toString().replace( '.', '/' ); }
+	
+	//the field descriptor, as in the class bytes
+	private String descriptor( TypeMirror T ) {
+		switch (T.getKind())
+		{
+			case BOOLEAN:
+				return "Z";
+			case BYTE:
+				return "B";
+			case SHORT:
+				return "S";
+			case CHAR:
+				return "C";
+			case INT:
+				return "I";
+			case LONG:
+				return "J";
+			case FLOAT:
+				return "F";
+			case DOUBLE:
+				return "D";
+			case ARRAY:
+				return "[" + descriptor( ((ArrayType) T).getComponentType() );
+			case DECLARED:
+				return "L" + internal( T ) + ";";
+		}
+		return "Ljava/lang/Object;";//type variable
+	}
+	
+	//  (File.java:line:column)
+	private String at( CompilationUnitTree unit, Tree tree ) {
+		final long pos = trees.getSourcePositions().getStartPosition( unit, tree );
+		if (pos < 0) return "";
+		final String file = unit.getSourceFile().getName();
+		return " (" + file.substring( Math.max( file.lastIndexOf( '/' ), file.lastIndexOf( '\\' ) ) + 1 ) + ":" + unit.getLineMap().getLineNumber( pos ) + ":" + unit.getLineMap().getColumnNumber( pos ) + ")";
+	}
+}